@@ -0,0 +1,145 @@
+package com.gemininpc.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// AIMD concurrency limit per Gemini model, learned from the API's own feedback. Each
+// successful call raises the model's limit by 1/limit (about +1 per round of calls); a 429/503
+// multiplies it by backoffRatio, and a latency spike (recent average above latencyTolerance
+// times the long-term average) trims it by 10%. Decreases are applied at most once per
+// cooldown, so a burst of 429s from calls that were already in flight counts as one signal.
+// AdmissionController only admits a call while its model is under its current limit.
+final class AdaptiveLimiter {
+
+    enum Outcome {
+        SUCCESS,
+        // 429 / 503
+        OVERLOAD,
+        // Other failures say nothing about capacity
+        IGNORE
+    }
+
+    private static final long DECREASE_COOLDOWN_MS = 1000;
+    private static final double LATENCY_DECREASE = 0.9;
+
+    private static final class Limit {
+        double limit;
+        int inFlight;
+        double shortRttMs;
+        double longRttMs;
+        long lastDecreaseAt;
+        long successes;
+        long overloads;
+        long latencyDrops;
+    }
+
+    // Snapshot for /gemini status
+    static final class Stats {
+        final String model;
+        final double limit;
+        final int inFlight;
+        final long successes;
+        final long overloads;
+        final long latencyDrops;
+        final long averageRttMs;
+
+        Stats(String model, Limit l) {
+            this.model = model;
+            this.limit = l.limit;
+            this.inFlight = l.inFlight;
+            this.successes = l.successes;
+            this.overloads = l.overloads;
+            this.latencyDrops = l.latencyDrops;
+            this.averageRttMs = Math.round(l.longRttMs);
+        }
+    }
+
+    private final Map<String, Limit> limits = new TreeMap<>();
+    private boolean enabled = true;
+    private double initialLimit = 8;
+    private double minLimit = 1;
+    private double maxLimit = 32;
+    private double backoffRatio = 0.5;
+    private double latencyTolerance = 2.0;
+
+    // Learned limits are kept, but clamped to the new bounds
+    synchronized void configure(boolean enabled, int initialLimit, int minLimit, int maxLimit,
+                                double backoffRatio, double latencyTolerance) {
+        this.enabled = enabled;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.initialLimit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.backoffRatio = Math.max(0.1, Math.min(0.95, backoffRatio));
+        this.latencyTolerance = Math.max(1.1, latencyTolerance);
+        for (Limit l : limits.values()) {
+            l.limit = Math.max(this.minLimit, Math.min(this.maxLimit, l.limit));
+        }
+    }
+
+    synchronized boolean hasRoom(String model) {
+        if (!enabled || model == null) return true;
+        Limit l = limitFor(model);
+        return l.inFlight < (int) l.limit;
+    }
+
+    synchronized void onStart(String model) {
+        if (model == null) return;
+        limitFor(model).inFlight++;
+    }
+
+    synchronized void onComplete(String model, Outcome outcome, long rttMs) {
+        if (model == null) return;
+        Limit l = limitFor(model);
+        l.inFlight = Math.max(0, l.inFlight - 1);
+        long now = System.currentTimeMillis();
+        switch (outcome) {
+            case OVERLOAD:
+                l.overloads++;
+                decrease(l, backoffRatio, now);
+                break;
+            case SUCCESS:
+                l.successes++;
+                l.shortRttMs = l.shortRttMs == 0 ? rttMs : l.shortRttMs * 0.7 + rttMs * 0.3;
+                l.longRttMs = l.longRttMs == 0 ? rttMs : l.longRttMs * 0.98 + rttMs * 0.02;
+                if (l.successes > 10 && l.shortRttMs > latencyTolerance * l.longRttMs) {
+                    if (decrease(l, LATENCY_DECREASE, now)) {
+                        l.latencyDrops++;
+                    }
+                } else {
+                    l.limit = Math.min(maxLimit, l.limit + 1.0 / l.limit);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private boolean decrease(Limit l, double ratio, long now) {
+        if (now - l.lastDecreaseAt < DECREASE_COOLDOWN_MS) return false;
+        l.lastDecreaseAt = now;
+        l.limit = Math.max(minLimit, l.limit * ratio);
+        return true;
+    }
+
+    private Limit limitFor(String model) {
+        return limits.computeIfAbsent(model, k -> {
+            Limit l = new Limit();
+            l.limit = initialLimit;
+            return l;
+        });
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    synchronized List<Stats> snapshot() {
+        List<Stats> stats = new ArrayList<>();
+        for (Map.Entry<String, Limit> e : limits.entrySet()) {
+            stats.add(new Stats(e.getKey(), e.getValue()));
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,258 @@
+package com.gemininpc.plugin;
+
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+// Server-wide gate in front of every Gemini API call. A call runs only while both its lane
+// (text or image) and the global cap have room; everything else waits in one queue ordered
+// by start-time fair queueing: each request gets a virtual finish tag of
+// max(now, owner's previous finish) + 1/weight, so a player sending many requests (or
+// retrying) falls behind players who have been served less, and weighted players get a
+// proportionally larger share. A call for a model is additionally held back while that model
+// is at its AdaptiveLimiter limit. Waiting parks only the calling virtual thread.
+// Every call's outcome is reported to both the limiter and the model's CircuitBreaker.
+final class AdmissionController {
+
+    enum Lane {
+        // Chat, web search and command generation
+        TEXT,
+        IMAGE
+    }
+
+    private static final class Ticket {
+        final Lane lane;
+        final String model;
+        final double startTag;
+        final double finishTag;
+        final long seq;
+        final Condition ready;
+        boolean granted;
+
+        Ticket(Lane lane, String model, double startTag, double finishTag, long seq, Condition ready) {
+            this.lane = lane;
+            this.model = model;
+            this.startTag = startTag;
+            this.finishTag = finishTag;
+            this.seq = seq;
+            this.ready = ready;
+        }
+    }
+
+    // Owners whose last finish tag is behind the virtual clock are forgotten past this size
+    private static final int MAX_TRACKED_OWNERS = 256;
+
+    private final AdaptiveLimiter limiter;
+    private final CircuitBreaker breaker;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeSet<Ticket> waiting = new TreeSet<>(
+        Comparator.comparingDouble((Ticket t) -> t.finishTag).thenComparingLong(t -> t.seq));
+    private final Map<UUID, Double> lastFinish = new HashMap<>();
+    private final Map<Lane, Integer> laneLimits = new EnumMap<>(Lane.class);
+    private final Map<Lane, Integer> laneActive = new EnumMap<>(Lane.class);
+    private int globalLimit;
+    private int globalActive;
+    private double virtualTime;
+    private long nextSeq;
+
+    AdmissionController(AdaptiveLimiter limiter, CircuitBreaker breaker) {
+        this.limiter = limiter;
+        this.breaker = breaker;
+        for (Lane lane : Lane.values()) {
+            laneActive.put(lane, 0);
+        }
+        configure(16, 12, 4);
+    }
+
+    // Raising a limit admits waiting calls right away; lowering it lets in-flight calls finish
+    void configure(int globalLimit, int textLimit, int imageLimit) {
+        lock.lock();
+        try {
+            this.globalLimit = Math.max(1, globalLimit);
+            laneLimits.put(Lane.TEXT, Math.max(1, textLimit));
+            laneLimits.put(Lane.IMAGE, Math.max(1, imageLimit));
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until admitted, then runs the call. onQueued receives the caller's position in
+    // its lane (1 = next) when it cannot start immediately; it runs outside the lock.
+    // The result feeds the model's limit and breaker: a non-null result is a success, a
+    // RetryableException (429/503) is overload, anything else is ignored. permit is what the
+    // breaker's allow() returned for this call (null if it was not asked).
+    <T> T call(Lane lane, String model, CircuitBreaker.Permit permit, UUID owner, int weight, IntConsumer onQueued,
+               IoExecutor.IoCall<T> call) throws Exception {
+        Ticket ticket;
+        try {
+            ticket = acquire(lane, model, owner, weight, onQueued);
+        } catch (InterruptedException e) {
+            // Releases a half-open probe slot claimed before queueing
+            breaker.record(model, permit, AdaptiveLimiter.Outcome.IGNORE);
+            throw e;
+        }
+        long startedAt = System.currentTimeMillis();
+        AdaptiveLimiter.Outcome outcome = AdaptiveLimiter.Outcome.IGNORE;
+        try {
+            T result = call.call();
+            if (result != null) {
+                outcome = AdaptiveLimiter.Outcome.SUCCESS;
+            }
+            return result;
+        } catch (RetryScheduler.RetryableException e) {
+            outcome = AdaptiveLimiter.Outcome.OVERLOAD;
+            throw e;
+        } finally {
+            limiter.onComplete(model, outcome, System.currentTimeMillis() - startedAt);
+            breaker.record(model, permit, outcome);
+            release(ticket);
+        }
+    }
+
+    private Ticket acquire(Lane lane, String model, UUID owner, int weight, IntConsumer onQueued) throws InterruptedException {
+        Ticket ticket;
+        int position;
+        lock.lock();
+        try {
+            double start = Math.max(virtualTime, lastFinish.getOrDefault(owner, 0.0));
+            double finish = start + 1.0 / Math.max(1, weight);
+            lastFinish.put(owner, finish);
+            ticket = new Ticket(lane, model, start, finish, nextSeq++, lock.newCondition());
+            waiting.add(ticket);
+            dispatch();
+            if (ticket.granted) {
+                return ticket;
+            }
+            position = positionOf(ticket);
+        } finally {
+            lock.unlock();
+        }
+
+        if (onQueued != null) {
+            onQueued.accept(position);
+        }
+
+        lock.lock();
+        try {
+            while (!ticket.granted) {
+                ticket.ready.await();
+            }
+            return ticket;
+        } catch (InterruptedException e) {
+            if (ticket.granted) {
+                limiter.onComplete(ticket.model, AdaptiveLimiter.Outcome.IGNORE, 0);
+                releaseLocked(ticket);
+            } else {
+                waiting.remove(ticket);
+            }
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Ticket ticket) {
+        lock.lock();
+        try {
+            releaseLocked(ticket);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseLocked(Ticket ticket) {
+        globalActive--;
+        laneActive.merge(ticket.lane, -1, Integer::sum);
+        if (lastFinish.size() > MAX_TRACKED_OWNERS) {
+            lastFinish.values().removeIf(finish -> finish <= virtualTime);
+        }
+        dispatch();
+    }
+
+    // Grants waiting tickets in tag order while the global cap has room; a ticket whose lane
+    // or model is full is passed over so other work is not blocked behind it
+    private void dispatch() {
+        var it = waiting.iterator();
+        while (it.hasNext() && globalActive < globalLimit) {
+            Ticket next = it.next();
+            if (laneActive.get(next.lane) >= laneLimits.get(next.lane) || !limiter.hasRoom(next.model)) {
+                continue;
+            }
+            it.remove();
+            globalActive++;
+            laneActive.merge(next.lane, 1, Integer::sum);
+            limiter.onStart(next.model);
+            virtualTime = Math.max(virtualTime, next.startTag);
+            next.granted = true;
+            next.ready.signal();
+        }
+    }
+
+    private int positionOf(Ticket ticket) {
+        int position = 1;
+        for (Ticket t : waiting.headSet(ticket, false)) {
+            if (t.lane == ticket.lane) {
+                position++;
+            }
+        }
+        return position;
+    }
+
+    int getActive(Lane lane) {
+        lock.lock();
+        try {
+            return laneActive.get(lane);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getLimit(Lane lane) {
+        lock.lock();
+        try {
+            return laneLimits.get(lane);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getWaiting(Lane lane) {
+        lock.lock();
+        try {
+            int count = 0;
+            for (Ticket t : waiting) {
+                if (t.lane == lane) {
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getGlobalActive() {
+        lock.lock();
+        try {
+            return globalActive;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getGlobalLimit() {
+        lock.lock();
+        try {
+            return globalLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.gemininpc.plugin;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Pool of Gemini API keys. Each request leases the key with the most quota left: with a
+// per-key requests-per-minute limit that is rpm minus the requests sent in the last minute
+// and those in flight, without one it is simply the least-used key. A key that gets a 429 is
+// quarantined (Retry-After, or quarantineMs doubling with each consecutive 429 up to 8x) and
+// skipped until it recovers; if every key is quarantined the one that recovers first is used.
+final class ApiKeyPool {
+
+    private static final long WINDOW_MS = 60000;
+    private static final int MAX_BACKOFF_SHIFT = 3;
+
+    private static final class Key {
+        final String value;
+        final ArrayDeque<Long> recent = new ArrayDeque<>();
+        int inFlight;
+        long requests;
+        long throttled;
+        long tokens;
+        long quarantinedUntil;
+        int strikes;
+
+        Key(String value) {
+            this.value = value;
+        }
+
+        int recentCount(long now) {
+            while (!recent.isEmpty() && now - recent.peekFirst() > WINDOW_MS) {
+                recent.pollFirst();
+            }
+            return recent.size();
+        }
+    }
+
+    // One request's use of a key; closing it returns the in-flight slot
+    final class Lease implements AutoCloseable {
+        private final Key key;
+        private boolean closed;
+
+        private Lease(Key key) {
+            this.key = key;
+        }
+
+        String value() {
+            return key.value;
+        }
+
+        void onStatus(int statusCode, long retryAfterMs) {
+            synchronized (ApiKeyPool.this) {
+                long now = System.currentTimeMillis();
+                if (statusCode == 429) {
+                    key.throttled++;
+                    long backoff = quarantineMs << Math.min(MAX_BACKOFF_SHIFT, key.strikes);
+                    key.strikes++;
+                    key.quarantinedUntil = Math.max(key.quarantinedUntil, now + Math.max(backoff, retryAfterMs));
+                } else if (statusCode >= 200 && statusCode < 300) {
+                    key.strikes = 0;
+                }
+            }
+        }
+
+        void addTokens(long tokens) {
+            if (tokens <= 0) return;
+            synchronized (ApiKeyPool.this) {
+                key.tokens += tokens;
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized (ApiKeyPool.this) {
+                if (closed) return;
+                closed = true;
+                key.inFlight--;
+            }
+        }
+    }
+
+    // Snapshot for /gemini status; the key itself is masked
+    static final class Stats {
+        final String label;
+        final int inFlight;
+        final int lastMinute;
+        final long requests;
+        final long throttled;
+        final long tokens;
+        final long quarantinedForMs;
+
+        private Stats(Key key, long now) {
+            String v = key.value;
+            this.label = v.length() <= 4 ? "****" : "…" + v.substring(v.length() - 4);
+            this.inFlight = key.inFlight;
+            this.lastMinute = key.recentCount(now);
+            this.requests = key.requests;
+            this.throttled = key.throttled;
+            this.tokens = key.tokens;
+            this.quarantinedForMs = Math.max(0, key.quarantinedUntil - now);
+        }
+    }
+
+    private final Map<String, Key> keys = new LinkedHashMap<>();
+    private int requestsPerMinute;
+    private long quarantineMs = 30000;
+
+    // Counters of keys that stay in the list survive a reload
+    synchronized void configure(List<String> values, int requestsPerMinute, long quarantineMs) {
+        Map<String, Key> previous = new LinkedHashMap<>(keys);
+        keys.clear();
+        for (String value : values) {
+            if (value == null || value.isBlank()) continue;
+            String trimmed = value.trim();
+            keys.put(trimmed, previous.getOrDefault(trimmed, new Key(trimmed)));
+        }
+        this.requestsPerMinute = Math.max(0, requestsPerMinute);
+        this.quarantineMs = Math.max(1000, quarantineMs);
+    }
+
+    synchronized int size() {
+        return keys.size();
+    }
+
+    // null when no key is configured
+    synchronized Lease acquire() {
+        long now = System.currentTimeMillis();
+        Key best = null;
+        long bestScore = Long.MIN_VALUE;
+        Key soonest = null;
+        for (Key key : keys.values()) {
+            if (key.quarantinedUntil > now) {
+                if (soonest == null || key.quarantinedUntil < soonest.quarantinedUntil) soonest = key;
+                continue;
+            }
+            int used = key.recentCount(now) + key.inFlight;
+            long score = requestsPerMinute > 0 ? requestsPerMinute - used : -used;
+            if (score > bestScore) {
+                best = key;
+                bestScore = score;
+            }
+        }
+        if (best == null) best = soonest;
+        if (best == null) return null;
+        best.recent.addLast(now);
+        best.inFlight++;
+        best.requests++;
+        return new Lease(best);
+    }
+
+    synchronized List<Stats> snapshot() {
+        long now = System.currentTimeMillis();
+        List<Stats> stats = new ArrayList<>();
+        for (Key key : keys.values()) {
+            stats.add(new Stats(key, now));
+        }
+        return stats;
+    }
+}
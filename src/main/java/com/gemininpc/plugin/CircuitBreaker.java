@@ -0,0 +1,193 @@
+package com.gemininpc.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Circuit breaker per Gemini model. CLOSED tracks the outcome of the last windowSize calls;
+// once at least minimumCalls are recorded and the failure rate (429/503) reaches the
+// threshold, the breaker OPENs and callers route to a fallback model without trying this
+// one. After openMs it goes HALF_OPEN and lets up to halfOpenProbes requests through: all of
+// them succeeding closes it again, any failure reopens it; results of calls let through
+// before it tripped do not count as probes. Only models that have been passed to allow()
+// (those with a fallback) get a breaker; outcomes for other models are ignored.
+final class CircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    // A probe that never reported back (plugin error, disable) stops blocking new probes after this
+    private static final long PROBE_TIMEOUT_MS = 180000;
+
+    private static final class Breaker {
+        State state = State.CLOSED;
+        boolean[] window;
+        int windowPos;
+        int windowCount;
+        int failures;
+        long openedAt;
+        long probePeriod;
+        int probesInFlight;
+        int probeSuccesses;
+        long lastProbeAt;
+        long timesOpened;
+    }
+
+    // Snapshot for /gemini status
+    static final class Stats {
+        final String model;
+        final State state;
+        final int failureRate;
+        final int calls;
+        final long timesOpened;
+
+        Stats(String model, State state, int failureRate, int calls, long timesOpened) {
+            this.model = model;
+            this.state = state;
+            this.failureRate = failureRate;
+            this.calls = calls;
+            this.timesOpened = timesOpened;
+        }
+    }
+
+    // What allow() let a call through with; it goes back to record() with the call's outcome.
+    // A probe permit names the half-open period its slot belongs to, so only that call
+    // releases the slot.
+    static final class Permit {
+        private final long probePeriod;
+
+        private Permit(long probePeriod) {
+            this.probePeriod = probePeriod;
+        }
+    }
+
+    // A call that holds no probe slot
+    private static final Permit PASS = new Permit(0);
+
+    private final Map<String, Breaker> breakers = new TreeMap<>();
+    private long lastProbePeriod;
+    private boolean enabled = true;
+    private int windowSize = 20;
+    private int minimumCalls = 5;
+    private int failureRatePercent = 50;
+    private long openMs = 30000;
+    private int halfOpenProbes = 2;
+
+    // Breakers restart CLOSED with an empty window when the window size changes
+    synchronized void configure(boolean enabled, int windowSize, int minimumCalls, int failureRatePercent,
+                                long openMs, int halfOpenProbes) {
+        this.enabled = enabled;
+        int size = Math.max(1, windowSize);
+        if (size != this.windowSize) {
+            breakers.clear();
+        }
+        this.windowSize = size;
+        this.minimumCalls = Math.max(1, Math.min(size, minimumCalls));
+        this.failureRatePercent = Math.max(1, Math.min(100, failureRatePercent));
+        this.openMs = Math.max(1000, openMs);
+        this.halfOpenProbes = Math.max(1, halfOpenProbes);
+    }
+
+    // A permit if a call to this model may go out now, null if not. In HALF_OPEN the permit
+    // holds a probe slot, so every permit must be followed by exactly one record()
+    synchronized Permit allow(String model) {
+        if (!enabled) return PASS;
+        Breaker b = breakerFor(model);
+        long now = System.currentTimeMillis();
+        if (b.state == State.OPEN) {
+            if (now - b.openedAt < openMs) return null;
+            b.state = State.HALF_OPEN;
+            b.probePeriod = ++lastProbePeriod;
+            b.probesInFlight = 0;
+            b.probeSuccesses = 0;
+        }
+        if (b.state == State.HALF_OPEN) {
+            if (b.probesInFlight >= halfOpenProbes && now - b.lastProbeAt > PROBE_TIMEOUT_MS) {
+                // The lost probes' permits belong to the old period and release nothing
+                b.probePeriod = ++lastProbePeriod;
+                b.probesInFlight = 0;
+            }
+            if (b.probeSuccesses + b.probesInFlight >= halfOpenProbes) return null;
+            b.probesInFlight++;
+            b.lastProbeAt = now;
+            return new Permit(b.probePeriod);
+        }
+        return PASS;
+    }
+
+    synchronized void record(String model, Permit permit, AdaptiveLimiter.Outcome outcome) {
+        if (!enabled || model == null) return;
+        Breaker b = breakers.get(model);
+        if (b == null) return;
+        if (b.state == State.HALF_OPEN) {
+            // Calls let through before the breaker tripped, and probes from an earlier period,
+            // report while it is half-open too; only this period's probes decide it
+            if (permit == null || permit.probePeriod != b.probePeriod) return;
+            b.probesInFlight--;
+            if (outcome == AdaptiveLimiter.Outcome.OVERLOAD) {
+                open(b);
+            } else if (outcome == AdaptiveLimiter.Outcome.SUCCESS && ++b.probeSuccesses >= halfOpenProbes) {
+                b.state = State.CLOSED;
+                resetWindow(b);
+            }
+            return;
+        }
+        if (b.state == State.OPEN || outcome == AdaptiveLimiter.Outcome.IGNORE) return;
+
+        boolean failure = outcome == AdaptiveLimiter.Outcome.OVERLOAD;
+        if (b.windowCount == windowSize) {
+            if (b.window[b.windowPos]) b.failures--;
+        } else {
+            b.windowCount++;
+        }
+        b.window[b.windowPos] = failure;
+        if (failure) b.failures++;
+        b.windowPos = (b.windowPos + 1) % windowSize;
+
+        if (b.windowCount >= minimumCalls && b.failures * 100 >= failureRatePercent * b.windowCount) {
+            open(b);
+        }
+    }
+
+    private void open(Breaker b) {
+        b.state = State.OPEN;
+        b.openedAt = System.currentTimeMillis();
+        b.probesInFlight = 0;
+        b.probeSuccesses = 0;
+        b.timesOpened++;
+        resetWindow(b);
+    }
+
+    private void resetWindow(Breaker b) {
+        b.window = new boolean[windowSize];
+        b.windowPos = 0;
+        b.windowCount = 0;
+        b.failures = 0;
+    }
+
+    private Breaker breakerFor(String model) {
+        return breakers.computeIfAbsent(model, k -> {
+            Breaker b = new Breaker();
+            resetWindow(b);
+            return b;
+        });
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    synchronized List<Stats> snapshot() {
+        List<Stats> stats = new ArrayList<>();
+        for (Map.Entry<String, Breaker> e : breakers.entrySet()) {
+            Breaker b = e.getValue();
+            int rate = b.windowCount == 0 ? 0 : b.failures * 100 / b.windowCount;
+            stats.add(new Stats(e.getKey(), b.state, rate, b.windowCount, b.timesOpened));
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,141 @@
+package com.gemininpc.plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// LRU/TTL cache of parsed command-generation results, keyed by model plus the request as
+// folded by RequestNormalizer, so the same ask in kana, kanji-kana mix, romaji or full-width
+// text is answered without a Gemini call. Results larger than maxEntryChars are not kept.
+final class CommandCache {
+
+    static final class Result {
+        final List<String> commands;
+        final String explanation;
+
+        Result(List<String> commands, String explanation) {
+            this.commands = Collections.unmodifiableList(new ArrayList<>(commands));
+            this.explanation = explanation;
+        }
+
+        int chars() {
+            int total = explanation != null ? explanation.length() : 0;
+            for (String command : commands) {
+                total += command.length();
+            }
+            return total;
+        }
+    }
+
+    private static final class Entry {
+        final Result result;
+        final long storedAt;
+
+        Entry(Result result, long storedAt) {
+            this.result = result;
+            this.storedAt = storedAt;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxEntries) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+    private boolean enabled = true;
+    private int maxEntries = 500;
+    private long ttlMs = 6 * 3600000L;
+    private int maxEntryChars = 4000;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long oversized;
+
+    synchronized void configure(boolean enabled, int maxEntries, long ttlMs, int maxEntryChars) {
+        this.enabled = enabled;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.ttlMs = Math.max(1000, ttlMs);
+        this.maxEntryChars = Math.max(1, maxEntryChars);
+        if (!enabled) {
+            entries.clear();
+        }
+        // Shrinks an over-full map down to the new cap, oldest first
+        var it = entries.entrySet().iterator();
+        while (entries.size() > this.maxEntries && it.hasNext()) {
+            it.next();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    static String key(String model, String request) {
+        return model + "\n" + RequestNormalizer.normalize(request);
+    }
+
+    // null on a miss (or when disabled)
+    synchronized Result get(String key) {
+        if (!enabled) return null;
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.storedAt > ttlMs) {
+            entries.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.result;
+    }
+
+    synchronized void put(String key, Result result) {
+        if (!enabled || result == null || result.commands.isEmpty()) return;
+        if (result.chars() > maxEntryChars) {
+            oversized++;
+            return;
+        }
+        entries.put(key, new Entry(result, System.currentTimeMillis()));
+    }
+
+    // Returns how many entries were dropped
+    synchronized int invalidateAll() {
+        int size = entries.size();
+        entries.clear();
+        return size;
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized long getOversized() {
+        return oversized;
+    }
+}
@@ -0,0 +1,336 @@
+package com.gemininpc.plugin;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Gemini context caching (cachedContents) for the static system prompts. One cache entry per
+// prompt and model is created on enable and /geminireload; requests then name the cache
+// instead of resending the prompt, so its tokens are billed at the cached rate and skip
+// prefill. Entries are renewed (PATCH ttl) once less than half their TTL is left and
+// recreated if the server dropped them. A prompt the API refuses to cache (typically below
+// the model's minimum token count) is retried after FAILURE_BACKOFF_MS; until then, and
+// whenever no entry is live, requests inline the prompt as before.
+final class ContextCache {
+
+    // What to cache: systemInstruction (plus the google_search tool) for one model
+    static final class Spec {
+        final String label;
+        final String model;
+        final String systemInstructionJson;
+        final boolean googleSearch;
+
+        Spec(String label, String model, String systemInstructionJson, boolean googleSearch) {
+            this.label = label;
+            this.model = model;
+            this.systemInstructionJson = systemInstructionJson;
+            this.googleSearch = googleSearch;
+        }
+
+        String key() {
+            return key(model, systemInstructionJson, googleSearch);
+        }
+
+        static String key(String model, String systemInstructionJson, boolean googleSearch) {
+            return model + (googleSearch ? "+search\n" : "\n") + systemInstructionJson;
+        }
+    }
+
+    private static final class Entry {
+        final Spec spec;
+        volatile String name;
+        volatile long expiresAt;
+        volatile long retryAt;
+        volatile String lastError;
+
+        Entry(Spec spec) {
+            this.spec = spec;
+        }
+    }
+
+    // Snapshot for /gemini status
+    static final class Stats {
+        final String label;
+        final String model;
+        final boolean live;
+        final long expiresInMs;
+        final String lastError;
+
+        private Stats(Entry e, long now) {
+            this.label = e.spec.label;
+            this.model = e.spec.model;
+            this.live = e.name != null && e.expiresAt > now;
+            this.expiresInMs = Math.max(0, e.expiresAt - now);
+            this.lastError = e.lastError;
+        }
+    }
+
+    // A cache this close to expiry is not handed out (the request may arrive after it is gone)
+    private static final long EXPIRY_MARGIN_MS = 60000;
+    private static final long FAILURE_BACKOFF_MS = 30 * 60000L;
+    private static final long REQUEST_TIMEOUT_MS = 30000;
+    private static final long DELETE_TIMEOUT_MS = 5000;
+    // clear() runs while the server shuts down: all of its deletes share this much time
+    private static final long CLEAR_DEADLINE_MS = 2000;
+
+    private final Logger logger;
+    private final GeminiHttpClient http;
+    private final GeminiRequestWriter writer;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    // refresh() and renewExpiring() run on I/O threads; one at a time
+    private final Object maintenance = new Object();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile boolean enabled;
+    private volatile long ttlSeconds = 3600;
+    private volatile String baseUrl;
+
+    ContextCache(Logger logger, GeminiHttpClient http, GeminiRequestWriter writer) {
+        this.logger = logger;
+        this.http = http;
+        this.writer = writer;
+    }
+
+    void configure(boolean enabled, long ttlSeconds, String baseUrl) {
+        this.enabled = enabled;
+        this.ttlSeconds = Math.max(300, ttlSeconds);
+        this.baseUrl = baseUrl;
+    }
+
+    // Cache name to send instead of the prompt, or null to inline it
+    String lookup(String model, String systemInstructionJson, boolean googleSearch) {
+        if (!enabled) return null;
+        Entry e;
+        synchronized (entries) {
+            e = entries.get(Spec.key(model, systemInstructionJson, googleSearch));
+        }
+        String name = e != null ? e.name : null;
+        if (name != null && e.expiresAt - EXPIRY_MARGIN_MS > System.currentTimeMillis()) {
+            hits.incrementAndGet();
+            return name;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    // Blocking: creates entries for new specs and deletes those no longer wanted (prompt edited
+    // or model dropped). Entries whose prompt is unchanged are kept as they are.
+    void refresh(List<Spec> specs) {
+        synchronized (maintenance) {
+            List<Entry> stale = new ArrayList<>();
+            List<Entry> fresh = new ArrayList<>();
+            synchronized (entries) {
+                Set<String> wanted = new HashSet<>();
+                for (Spec spec : enabled ? specs : List.<Spec>of()) {
+                    wanted.add(spec.key());
+                    if (!entries.containsKey(spec.key())) {
+                        Entry e = new Entry(spec);
+                        entries.put(spec.key(), e);
+                        fresh.add(e);
+                    }
+                }
+                for (var it = entries.values().iterator(); it.hasNext(); ) {
+                    Entry e = it.next();
+                    if (!wanted.contains(e.spec.key())) {
+                        it.remove();
+                        stale.add(e);
+                    }
+                }
+            }
+            for (Entry e : stale) {
+                delete(e, DELETE_TIMEOUT_MS);
+            }
+            for (Entry e : fresh) {
+                create(e);
+            }
+        }
+    }
+
+    // Periodic: extends entries past half their TTL, recreates dropped or failed ones
+    void renewExpiring() {
+        if (!enabled) return;
+        synchronized (maintenance) {
+            long now = System.currentTimeMillis();
+            long halfTtlMs = ttlSeconds * 500;
+            for (Entry e : entriesCopy()) {
+                if (e.name == null) {
+                    if (now >= e.retryAt) create(e);
+                } else if (e.expiresAt - now < halfTtlMs) {
+                    renew(e);
+                }
+            }
+        }
+    }
+
+    // A request naming a cache was rejected (deleted or expired server-side): stop using all
+    // entries until the next renewal recreates them
+    void onRequestError(String errorBody) {
+        if (errorBody == null || !errorBody.contains("achedContent")) return;
+        for (Entry e : entriesCopy()) {
+            e.name = null;
+            e.retryAt = 0;
+        }
+        logger.warning("Context cache rejected by the API; sending system prompts inline until it is recreated");
+    }
+
+    // On disable: delete every entry so the server stops billing cache storage. The deletes
+    // run in parallel on worker and share CLEAR_DEADLINE_MS; one that does not make it is left
+    // to expire with its TTL. Does not wait for a refresh or renewal in progress (an entry it
+    // is still creating also just expires).
+    void clear(Executor worker) {
+        List<Entry> all;
+        synchronized (entries) {
+            all = new ArrayList<>(entries.values());
+            entries.clear();
+        }
+        long deadline = System.currentTimeMillis() + CLEAR_DEADLINE_MS;
+        List<CompletableFuture<Void>> deletes = new ArrayList<>();
+        for (Entry e : all) {
+            if (e.name == null) continue;
+            try {
+                deletes.add(CompletableFuture.runAsync(
+                    () -> delete(e, Math.max(1, deadline - System.currentTimeMillis())), worker));
+            } catch (RejectedExecutionException ex) {
+                break;
+            }
+        }
+        if (deletes.isEmpty()) return;
+        try {
+            CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[0]))
+                .get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            logger.info("Context cache: some entries were not deleted on shutdown and will expire on their own");
+        }
+    }
+
+    private void create(Entry e) {
+        Spec spec = e.spec;
+        GeminiHttpClient.BodyWriter body = writer.cacheRequest(spec.model, "if-gemini " + spec.label,
+            spec.systemInstructionJson, spec.googleSearch, ttlSeconds);
+        try (GeminiHttpClient.Response response = http.postJson(baseUrl + "/cachedContents", body, REQUEST_TIMEOUT_MS)) {
+            if (response.statusCode() == 200) {
+                accept(e, response);
+                logger.info("Context cache created: " + spec.label + " (" + spec.model + ")");
+                return;
+            }
+            fail(e, response.statusCode() + " " + readBody(response));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            fail(e, ex.getMessage());
+        }
+    }
+
+    private void renew(Entry e) {
+        String url = baseUrl + "/" + e.name + "?updateMask=ttl";
+        try (GeminiHttpClient.Response response = http.sendJson("PATCH", url, writer.cacheTtlRequest(ttlSeconds), REQUEST_TIMEOUT_MS)) {
+            if (response.statusCode() == 200) {
+                accept(e, response);
+                return;
+            }
+            readBody(response);
+            if (response.statusCode() == 404 || response.statusCode() == 403) {
+                // Expired or deleted on the server
+                e.name = null;
+                create(e);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            logger.warning("Context cache renewal failed for " + e.spec.label + ": " + ex.getMessage());
+        }
+    }
+
+    private void delete(Entry e, long timeoutMs) {
+        String name = e.name;
+        if (name == null) return;
+        e.name = null;
+        try (GeminiHttpClient.Response response = http.sendJson("DELETE", baseUrl + "/" + name, null, timeoutMs)) {
+            readBody(response);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            // Left to expire on its own
+        }
+    }
+
+    private void accept(Entry e, GeminiHttpClient.Response response) throws IOException {
+        JsonObject json;
+        try (Reader reader = new InputStreamReader(response.body(), StandardCharsets.UTF_8)) {
+            json = JsonParser.parseReader(reader).getAsJsonObject();
+        }
+        long expiresAt = System.currentTimeMillis() + ttlSeconds * 1000;
+        if (json.has("expireTime")) {
+            try {
+                expiresAt = Instant.parse(json.get("expireTime").getAsString()).toEpochMilli();
+            } catch (RuntimeException ignored) {
+            }
+        }
+        if (json.has("name")) {
+            e.name = json.get("name").getAsString();
+        }
+        e.expiresAt = expiresAt;
+        e.lastError = null;
+    }
+
+    private void fail(Entry e, String error) {
+        e.name = null;
+        e.retryAt = System.currentTimeMillis() + FAILURE_BACKOFF_MS;
+        e.lastError = error != null && error.length() > 200 ? error.substring(0, 200) : error;
+        logger.info("Context cache not available for " + e.spec.label + " (" + e.spec.model
+            + "), sending it inline: " + e.lastError);
+    }
+
+    private static String readBody(GeminiHttpClient.Response response) throws IOException {
+        return new String(response.body().readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    private List<Entry> entriesCopy() {
+        synchronized (entries) {
+            return new ArrayList<>(entries.values());
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    List<Stats> snapshot() {
+        long now = System.currentTimeMillis();
+        List<Stats> stats = new ArrayList<>();
+        for (Entry e : entriesCopy()) {
+            stats.add(new Stats(e, now));
+        }
+        return stats;
+    }
+}
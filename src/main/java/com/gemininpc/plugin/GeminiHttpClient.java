@@ -0,0 +1,312 @@
+package com.gemininpc.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Shared keep-alive HTTP client for every Gemini endpoint.
+// HTTP/2 multiplexes all requests over one TLS connection per host, so chat turns no longer
+// pay a TCP+TLS handshake. maxConnections bounds concurrent exchanges (and therefore sockets
+// if the server falls back to HTTP/1.1); the client is closed after idleTimeout so idle
+// connections are evicted and re-established lazily on the next request.
+// API keys are leased from the ApiKeyPool per request and sent in the x-goog-api-key header.
+final class GeminiHttpClient {
+
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(30);
+
+    private final Logger logger;
+    private final ApiKeyPool apiKeys;
+    private final Object lock = new Object();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong totalRequests = new AtomicLong();
+    private final AtomicLong clientsCreated = new AtomicLong();
+
+    private HttpClient client;
+    private volatile Semaphore permits;
+    private volatile int maxConnections;
+    private volatile long idleTimeoutMs;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    GeminiHttpClient(Logger logger, ApiKeyPool apiKeys, int maxConnections, long idleTimeoutMs) {
+        this.logger = logger;
+        this.apiKeys = apiKeys;
+        configure(maxConnections, idleTimeoutMs);
+    }
+
+    // Called on enable and on /geminireload; in-flight requests keep their old permit pool
+    void configure(int maxConnections, long idleTimeoutMs) {
+        int max = Math.max(1, maxConnections);
+        if (this.permits == null || this.maxConnections != max) {
+            this.permits = new Semaphore(max, true);
+            this.maxConnections = max;
+        }
+        this.idleTimeoutMs = Math.max(1000, idleTimeoutMs);
+    }
+
+    static final class Response implements AutoCloseable {
+        private final HttpResponse<InputStream> response;
+        private final ApiKeyPool.Lease apiKey;
+        private final Runnable onClose;
+        private boolean closed;
+
+        private Response(HttpResponse<InputStream> response, ApiKeyPool.Lease apiKey, Runnable onClose) {
+            this.response = response;
+            this.apiKey = apiKey;
+            this.onClose = onClose;
+        }
+
+        // Key the request was sent with (null if none is configured), for per-key token counts
+        ApiKeyPool.Lease apiKey() {
+            return apiKey;
+        }
+
+        int statusCode() {
+            return response.statusCode();
+        }
+
+        String header(String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        InputStream body() {
+            return response.body();
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            try {
+                // Closing (not abandoning) the body returns the stream/connection to the pool
+                response.body().close();
+            } catch (IOException ignored) {
+            } finally {
+                if (apiKey != null) apiKey.close();
+                onClose.run();
+            }
+        }
+    }
+
+    // Writes a request body; may be invoked more than once if the client has to resend
+    interface BodyWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    Response postJson(String url, BodyWriter body, long timeoutMs) throws IOException, InterruptedException {
+        return sendJson("POST", url, body, timeoutMs);
+    }
+
+    // Any method (PATCH/DELETE for cachedContents); body may be null
+    Response sendJson(String method, String url, BodyWriter body, long timeoutMs) throws IOException, InterruptedException {
+        ApiKeyPool.Lease apiKey = apiKeys.acquire();
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(url))
+            .timeout(Duration.ofMillis(timeoutMs))
+            .header("Content-Type", "application/json")
+            .method(method, body != null ? new StreamingBodyPublisher(body) : HttpRequest.BodyPublishers.noBody());
+        if (apiKey != null) {
+            request.header("x-goog-api-key", apiKey.value());
+        }
+        return send(request.build(), apiKey, timeoutMs);
+    }
+
+    // Produces the body on a virtual thread while the client is sending it. The bounded
+    // SubmissionPublisher buffer applies back-pressure, so at most MAX_BUFFERED chunks of the
+    // body exist in memory at once; the length is unknown, so HTTP/2 frames (or HTTP/1.1
+    // chunked encoding) carry it.
+    private static final class StreamingBodyPublisher implements HttpRequest.BodyPublisher {
+        private static final int CHUNK_SIZE = 16 * 1024;
+        private static final int MAX_BUFFERED = 16;
+
+        private final BodyWriter writer;
+
+        StreamingBodyPublisher(BodyWriter writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public long contentLength() {
+            return -1;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>(ForkJoinPool.commonPool(), MAX_BUFFERED);
+            publisher.subscribe(subscriber);
+            Thread.ofVirtual().name("if-Gemini-request-body").start(() -> {
+                try (ChunkOutputStream out = new ChunkOutputStream(publisher)) {
+                    writer.writeTo(out);
+                } catch (Throwable t) {
+                    publisher.closeExceptionally(t);
+                    return;
+                }
+                publisher.close();
+            });
+        }
+    }
+
+    private static final class ChunkOutputStream extends OutputStream {
+        private final SubmissionPublisher<ByteBuffer> publisher;
+        private ByteBuffer chunk = ByteBuffer.allocate(StreamingBodyPublisher.CHUNK_SIZE);
+
+        ChunkOutputStream(SubmissionPublisher<ByteBuffer> publisher) {
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void write(int b) {
+            if (!chunk.hasRemaining()) submitChunk();
+            chunk.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (!chunk.hasRemaining()) submitChunk();
+                int n = Math.min(len, chunk.remaining());
+                chunk.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        // Writers flush often (JsonWriter, OutputStreamWriter); only full chunks are sent
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+            submitChunk();
+        }
+
+        private void submitChunk() {
+            if (chunk.position() == 0) return;
+            chunk.flip();
+            // Blocks while MAX_BUFFERED chunks are waiting to be sent
+            publisher.submit(chunk);
+            chunk = ByteBuffer.allocate(StreamingBodyPublisher.CHUNK_SIZE);
+        }
+    }
+
+    private Response send(HttpRequest request, ApiKeyPool.Lease apiKey, long timeoutMs) throws IOException, InterruptedException {
+        Semaphore pool = permits;
+        if (!pool.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+            if (apiKey != null) apiKey.close();
+            throw new IOException("HTTP connection pool exhausted (" + maxConnections + " in use)");
+        }
+        HttpClient c = acquireClient();
+        boolean handedOff = false;
+        try {
+            HttpResponse<InputStream> response = c.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            totalRequests.incrementAndGet();
+            if (apiKey != null) {
+                apiKey.onStatus(response.statusCode(),
+                    RetryScheduler.parseRetryAfter(response.headers().firstValue("Retry-After").orElse(null)));
+            }
+            handedOff = true;
+            return new Response(response, apiKey, () -> release(pool));
+        } finally {
+            if (!handedOff) {
+                if (apiKey != null) apiKey.close();
+                release(pool);
+            }
+        }
+    }
+
+    private HttpClient acquireClient() {
+        synchronized (lock) {
+            inFlight.incrementAndGet();
+            if (client == null) {
+                client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .connectTimeout(CONNECT_TIMEOUT)
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .build();
+                clientsCreated.incrementAndGet();
+            }
+            return client;
+        }
+    }
+
+    private void release(Semaphore pool) {
+        lastUsed = System.currentTimeMillis();
+        inFlight.decrementAndGet();
+        pool.release();
+    }
+
+    // Opens the TLS/HTTP2 connection ahead of the first player request. The response status
+    // does not matter; only the handshake is wanted.
+    void warmUp(String url) {
+        HttpClient c = acquireClient();
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+            .timeout(CONNECT_TIMEOUT)
+            .GET()
+            .build();
+        c.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+            .whenComplete((response, error) -> {
+                lastUsed = System.currentTimeMillis();
+                inFlight.decrementAndGet();
+                if (error != null) {
+                    logger.warning("Gemini connection warm-up failed: " + error.getMessage());
+                } else {
+                    logger.info("Gemini connection warmed up (" + response.version() + ")");
+                }
+            });
+    }
+
+    // Periodically invoked; drops the client (and its pooled sockets) once nothing used it for idleTimeout
+    void evictIdle() {
+        HttpClient evicted = null;
+        synchronized (lock) {
+            if (client != null && inFlight.get() == 0
+                    && System.currentTimeMillis() - lastUsed > idleTimeoutMs) {
+                evicted = client;
+                client = null;
+            }
+        }
+        if (evicted != null) {
+            evicted.shutdownNow();
+        }
+    }
+
+    void shutdown() {
+        HttpClient c;
+        synchronized (lock) {
+            c = client;
+            client = null;
+        }
+        if (c != null) {
+            c.shutdownNow();
+        }
+    }
+
+    int getMaxConnections() {
+        return maxConnections;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    long getTotalRequests() {
+        return totalRequests.get();
+    }
+
+    long getClientsCreated() {
+        return clientsCreated.get();
+    }
+}
@@ -30,7 +30,13 @@ import java.io.OutputStream;
 import java.io.ByteArrayOutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Base64;
 import java.util.Collections;
@@ -38,6 +44,7 @@ import java.util.List;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -56,7 +63,8 @@ import net.md_5.bungee.api.chat.ComponentBuilder;
 
 public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
 
-    private String apiKey;
+    // Gemini API keys, leased per request (see GeminiHttpClient)
+    private final ApiKeyPool apiKeys = new ApiKeyPool();
     private String defaultModelName;
     private String systemPrompt;
     private String npcName;
@@ -117,6 +125,7 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
     private final Map<UUID, String> playerResolutions = new ConcurrentHashMap<>();
     private final Map<UUID, Long> imageGenerationCooldown = new ConcurrentHashMap<>();
     private static final long IMAGE_COOLDOWN_MS = 10000; // 10 seconds cooldown
+    private static final String FRESH_FLAG = "--fresh";
 
     // Library
     private final Map<UUID, List<ImageRecord>> playerImageLibrary = new ConcurrentHashMap<>();
@@ -132,18 +141,120 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         String resolution;
         String imageUrl;
         long timestamp;
+        // SHA-256 of the image in the local ImageStore (null for records saved before it existed)
+        String imageHash;
 
-        ImageRecord(String prompt, String modelName, String aspectRatio, String resolution, String imageUrl, long timestamp) {
+        ImageRecord(String prompt, String modelName, String aspectRatio, String resolution, String imageUrl, long timestamp,
+                    String imageHash) {
             this.prompt = prompt;
             this.modelName = modelName;
             this.aspectRatio = aspectRatio;
             this.resolution = resolution;
             this.imageUrl = imageUrl;
             this.timestamp = timestamp;
+            this.imageHash = imageHash;
         }
     }
 
-    private static final String GEMINI_API_URL = "https://generativelanguage.googleapis.com/v1beta/models/%s:generateContent?key=%s";
+    // A command-generation result as persisted for the near-duplicate index
+    private static class SavedCommandResult {
+        String model;
+        String request;
+        List<String> commands;
+        String explanation;
+
+        SavedCommandResult(String model, String request, List<String> commands, String explanation) {
+            this.model = model;
+            this.request = request;
+            this.commands = commands;
+            this.explanation = explanation;
+        }
+    }
+
+    // Paths under gemini.base-url (overridable so a local stand-in server can be used for tests)
+    private static final String GEMINI_DEFAULT_BASE_URL = "https://generativelanguage.googleapis.com/v1beta";
+    private static final String GEMINI_API_URL = "/models/%s:generateContent";
+    private static final String GEMINI_STREAM_API_URL = "/models/%s:streamGenerateContent?alt=sse";
+    private static final String GEMINI_WARMUP_URL = "/models";
+    private String geminiBaseUrl = GEMINI_DEFAULT_BASE_URL;
+
+    // Shared keep-alive connection pool for all Gemini calls
+    private GeminiHttpClient geminiHttp;
+    private final GeminiRequestWriter requestWriter = new GeminiRequestWriter();
+    private int httpMaxConnections;
+    private long httpIdleTimeoutMs;
+    private boolean httpWarmUp;
+
+    // Streaming (SSE) responses and time-to-first-visible-text metric
+    private boolean streamingEnabled;
+    private final LatencyTracker firstTextLatency = new LatencyTracker(200);
+
+    // Token usage reported in usageMetadata (output includes thinking tokens)
+    private final java.util.concurrent.atomic.AtomicLong promptTokensUsed = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong outputTokensUsed = new java.util.concurrent.atomic.AtomicLong();
+    private final java.util.concurrent.atomic.AtomicLong cachedTokensUsed = new java.util.concurrent.atomic.AtomicLong();
+
+    // Retries wait on a timer instead of sleeping in a worker thread
+    private RetryScheduler retryScheduler;
+
+    // Virtual-thread executor for all blocking I/O, bounded per resource class
+    private IoExecutor io;
+
+    // Per-player request mailboxes: one request in flight per player, the rest wait in order
+    private final Map<UUID, PlayerMailbox> playerMailboxes = new ConcurrentHashMap<>();
+    private int mailboxMaxQueued;
+
+    // Debounce windows for multi-line input, per mode (0 = send each line immediately)
+    private final MessageCoalescer messageCoalescer = new MessageCoalescer();
+    private long chatCoalesceMs;
+    private long searchCoalesceMs;
+    private long commandCoalesceMs;
+
+    // Server-wide cap and per-player fair queueing for Gemini calls (text and image lanes),
+    // plus a per-model concurrency limit learned from 429/503 and latency, and per-model
+    // circuit breakers that route Pro traffic to Flash while Pro keeps failing
+    private final AdaptiveLimiter adaptiveLimiter = new AdaptiveLimiter();
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private final AdmissionController admission = new AdmissionController(adaptiveLimiter, circuitBreaker);
+    private int admissionPriorityWeight;
+
+    // Opt-in hedging for chat and command generation: a second request (optionally on Flash)
+    // when the first has no response by the model's recent first-byte percentile
+    private RequestHedger requestHedger;
+    private boolean hedgeOnFlash;
+
+    // Image uploads race catbox / imgbb / litterbox, ranked by each host's recent record
+    private HostingUploader hostingUploader;
+    private static final double LITTERBOX_SCORE_WEIGHT = 0.5;
+
+    // cachedContents for the static system prompts (chat, command, search, image) per model
+    private ContextCache contextCache;
+
+    // Parsed command-generation results by model + normalized request
+    private final CommandCache commandCache = new CommandCache();
+
+    // Web search results by model + normalized query, with single-flight loading
+    private final SingleFlightCache<WebSearchResult> searchCache = new SingleFlightCache<>();
+
+    // Near-duplicate lookup over past command requests (scope: model) and image prompts
+    // (scope: model|ratio|resolution); a close match is offered with a [新しく生成] button
+    private final SimilarityIndex<CommandCache.Result> commandIndex = new SimilarityIndex<>();
+    private final SimilarityIndex<ImageRecord> imageIndex = new SimilarityIndex<>();
+    private volatile boolean commandIndexDirty;
+    private boolean similarityEnabled;
+    private double similarityThreshold;
+    // What [新しく生成] (/gemini regenerate) runs for each player
+    private final Map<UUID, Runnable> pendingRegenerations = new ConcurrentHashMap<>();
+
+    // Generated images, kept on disk under their SHA-256 (library I2I reads them from here)
+    private ImageStore imageStore;
+    private long imageScrubIntervalMs;
+    // Generated images by model + ratio + resolution + normalized prompt -> hash in the store
+    private ImageCache imageCache;
+    // image.hosting: local; serves the store over HTTP instead of uploading
+    private LocalImageServer localImageServer;
+    // Downscaled/re-encoded copies that are linked instead of the original (image.preview)
+    private ImageProcessor imageProcessor;
 
     @Override
     public void onEnable() {
@@ -151,6 +262,14 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         loadConfiguration();
         getServer().getPluginManager().registerEvents(this, this);
 
+        // Gemini HTTP pool: warm up the TLS connection now and evict it when idle
+        if (httpWarmUp) {
+            geminiHttp.warmUp(geminiBaseUrl + GEMINI_WARMUP_URL);
+        }
+        Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> geminiHttp.evictIdle(), 20L * 15, 20L * 15);
+        // Context caches are renewed well before their TTL runs out
+        Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> io.execute(contextCache::renewExpiring), 20L * 60, 20L * 60);
+
         // Register tab completers for commands
         if (getCommand("gemini") != null) {
             getCommand("gemini").setTabCompleter(this);
@@ -168,11 +287,48 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
             libraryDir.mkdirs();
         }
 
+        // Near-duplicate indexes are rebuilt from disk: past command results and every library.
+        // The image store loads first: a locally hosted image only passes the liveness check
+        // in rebuildImageIndex while the store still has it.
+        io.execute(IoExecutor.Resource.DISK, () -> {
+            loadCommandIndex();
+            imageStore.load();
+            imageCache.load();
+            rebuildImageIndex();
+        });
+        Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> {
+            if (commandIndexDirty) {
+                commandIndexDirty = false;
+                io.execute(IoExecutor.Resource.DISK, this::saveCommandIndex);
+            }
+            io.execute(IoExecutor.Resource.DISK, imageCache::save);
+        }, 20L * 60, 20L * 60);
+        // Integrity scrub of the image store, on the disk pool
+        Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> {
+            if (imageScrubIntervalMs > 0 && System.currentTimeMillis() - imageStore.getLastScrubAt() >= imageScrubIntervalMs) {
+                io.execute(IoExecutor.Resource.DISK, () -> {
+                    int removed = imageStore.scrub();
+                    if (removed > 0) {
+                        getLogger().warning("Image store scrub removed " + removed + " damaged image(s)");
+                    }
+                });
+            }
+        }, 20L * 60 * 10, 20L * 60 * 60);
+
+        // Spool directory for generated images in transit; anything left is from a crash
+        File[] staleSpool = new File(getDataFolder(), "spool").listFiles();
+        if (staleSpool != null) {
+            for (File stale : staleSpool) {
+                stale.delete();
+            }
+        }
+
         getLogger().info("========================================");
         getLogger().info("if-Gemini Plugin v2.2.1 Enabled!");
         getLogger().info("Default Model: " + defaultModelName);
         getLogger().info("Default Image Model: " + defaultImageModel);
         getLogger().info("Image Hosting: " + imageHosting);
+        getLogger().info("HTTP Pool: max " + httpMaxConnections + " connections, idle " + (httpIdleTimeoutMs / 1000) + "s");
         getLogger().info("Library Max: " + maxLibrarySize + " images/player");
         getLogger().info("Available Models: Flash, Flash Thinking, Pro");
         getLogger().info("Image Models: Nanobanana, Nanobanana Pro");
@@ -185,14 +341,40 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         for (Map.Entry<UUID, List<ImageRecord>> entry : playerImageLibrary.entrySet()) {
             saveLibrary(entry.getKey(), entry.getValue());
         }
+        if (commandIndexDirty) {
+            saveCommandIndex();
+        }
+        if (imageCache != null) {
+            imageCache.save();
+        }
+        if (localImageServer != null) {
+            localImageServer.stop();
+        }
+        if (imageProcessor != null) {
+            imageProcessor.shutdown();
+        }
         playerImageLibrary.clear();
         conversationHistories.clear();
+        playerMailboxes.clear();
         playerSessionMode.clear();
         playerModels.clear();
         playerImageModels.clear();
         playerAspectRatios.clear();
         playerResolutions.clear();
         imageGenerationCooldown.clear();
+        messageCoalescer.shutdown();
+        if (retryScheduler != null) {
+            retryScheduler.shutdown();
+        }
+        if (contextCache != null) {
+            contextCache.clear(io::execute);
+        }
+        if (io != null) {
+            io.shutdown();
+        }
+        if (geminiHttp != null) {
+            geminiHttp.shutdown();
+        }
         getLogger().info("if-Gemini Plugin Disabled!");
     }
 
@@ -200,7 +382,15 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         reloadConfig();
         FileConfiguration config = getConfig();
 
-        apiKey = config.getString("gemini.api-key", "YOUR_API_KEY_HERE");
+        // api-keys (list) takes precedence over the single api-key
+        List<String> keyList = new ArrayList<>(config.getStringList("gemini.api-keys"));
+        if (keyList.isEmpty()) {
+            keyList.add(config.getString("gemini.api-key", "YOUR_API_KEY_HERE"));
+        }
+        keyList.removeIf(key -> key == null || key.isBlank() || key.trim().equals("YOUR_API_KEY_HERE"));
+        apiKeys.configure(keyList,
+            config.getInt("gemini.api-key-rpm", 0),
+            Math.max(1, config.getInt("gemini.api-key-quarantine-seconds", 30)) * 1000L);
         String configModel = config.getString("gemini.model", MODEL_FLASH);
         defaultModelName = normalizeModelName(configModel);
         systemPrompt = config.getString("gemini.system-prompt", getDefaultSystemPrompt());
@@ -229,7 +419,7 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
             defaultResolution = RESOLUTION_1K;
         }
 
-        if (apiKey.equals("YOUR_API_KEY_HERE")) {
+        if (apiKeys.size() == 0) {
             getLogger().warning("Please set your Gemini API key in config.yml!");
         }
 
@@ -251,9 +441,176 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
             getLogger().info("[if-Gemini] Spreadsheet logging enabled: " + gasUrl);
         }
 
+        // HTTP connection pool settings
+        httpMaxConnections = Math.max(1, config.getInt("http.max-connections", 16));
+        httpIdleTimeoutMs = Math.max(1, config.getInt("http.idle-timeout-seconds", 120)) * 1000L;
+        httpWarmUp = config.getBoolean("http.warm-up", true);
+        geminiBaseUrl = config.getString("gemini.base-url", GEMINI_DEFAULT_BASE_URL).trim().replaceAll("/+$", "");
+        if (geminiHttp == null) {
+            geminiHttp = new GeminiHttpClient(getLogger(), apiKeys, httpMaxConnections, httpIdleTimeoutMs);
+        } else {
+            geminiHttp.configure(httpMaxConnections, httpIdleTimeoutMs);
+        }
+
+        // System prompts may have changed; re-encode request fragments on next use
+        requestWriter.clearFragments();
+
+        // Streaming responses
+        streamingEnabled = config.getBoolean("streaming.enabled", true);
+
+        // I/O concurrency limits per resource class
+        if (io == null) {
+            io = new IoExecutor(getLogger());
+        }
+        io.configure(IoExecutor.Resource.HOSTING_UPLOAD, config.getInt("io.hosting-upload", 4));
+        io.configure(IoExecutor.Resource.GAS, config.getInt("io.gas", 4));
+        io.configure(IoExecutor.Resource.DISK, config.getInt("io.disk", 2));
+
+        // Global Gemini concurrency and fair-queueing weight for gemininpc.priority
+        adaptiveLimiter.configure(
+            config.getBoolean("adaptive-limit.enabled", true),
+            config.getInt("adaptive-limit.initial", 8),
+            config.getInt("adaptive-limit.min", 1),
+            config.getInt("adaptive-limit.max", 32),
+            config.getDouble("adaptive-limit.backoff-ratio", 0.5),
+            config.getDouble("adaptive-limit.latency-tolerance", 2.0));
+        circuitBreaker.configure(
+            config.getBoolean("circuit-breaker.enabled", true),
+            config.getInt("circuit-breaker.window-size", 20),
+            config.getInt("circuit-breaker.minimum-calls", 5),
+            config.getInt("circuit-breaker.failure-rate", 50),
+            Math.max(1, config.getInt("circuit-breaker.open-seconds", 30)) * 1000L,
+            config.getInt("circuit-breaker.half-open-probes", 2));
+        admission.configure(
+            config.getInt("admission.max-concurrent", 16),
+            config.getInt("admission.text-lane", 12),
+            config.getInt("admission.image-lane", 4));
+        admissionPriorityWeight = Math.max(1, config.getInt("admission.priority-weight", 2));
+
+        // Hedged requests (chat / command generation)
+        if (requestHedger == null) {
+            requestHedger = new RequestHedger(io::execute);
+        }
+        requestHedger.configure(
+            config.getBoolean("hedging.enabled", false),
+            config.getDouble("hedging.percentile", 95),
+            config.getLong("hedging.min-delay-ms", 2000),
+            config.getDouble("hedging.budget-percent", 10));
+        hedgeOnFlash = config.getBoolean("hedging.use-flash", true);
+
+        // Hedged image uploads (host health is kept across reloads)
+        if (hostingUploader == null) {
+            hostingUploader = new HostingUploader(io::execute);
+        }
+        hostingUploader.configure(
+            config.getBoolean("image.upload-hedging.enabled", true),
+            config.getDouble("image.upload-hedging.percentile", 90),
+            Math.max(0, config.getLong("image.upload-hedging.default-delay-seconds", 15)) * 1000L,
+            Math.max(0, config.getLong("image.upload-hedging.min-delay-seconds", 3)) * 1000L);
+
+        // Requests a player may queue behind the one being processed
+        mailboxMaxQueued = Math.max(0, config.getInt("requests.max-queued-per-player", 3));
+
+        // Multi-line input coalescing
+        chatCoalesceMs = Math.max(0, config.getLong("coalesce.chat-ms", 1500));
+        searchCoalesceMs = Math.max(0, config.getLong("coalesce.search-ms", 0));
+        commandCoalesceMs = Math.max(0, config.getLong("coalesce.command-ms", 0));
+        messageCoalescer.setMaxLines(config.getInt("coalesce.max-lines", 4));
+
+        // Retry policy for Gemini text/search calls
+        if (retryScheduler == null) {
+            retryScheduler = new RetryScheduler(getLogger());
+        }
+        retryScheduler.configure(
+            config.getInt("retry.max-attempts", 3),
+            config.getLong("retry.base-delay-ms", 1000),
+            config.getLong("retry.max-delay-ms", 8000),
+            Math.max(1, config.getInt("retry.deadline-seconds", 180)) * 1000L);
+
+        // Context caching: a cache lives in the project of the key that created it, so it is
+        // only used with a single API key
+        if (contextCache == null) {
+            contextCache = new ContextCache(getLogger(), geminiHttp, requestWriter);
+        }
+        boolean cacheEnabled = config.getBoolean("context-cache.enabled", true);
+        if (cacheEnabled && apiKeys.size() > 1) {
+            getLogger().info("context-cache is disabled because more than one API key is configured");
+        }
+        contextCache.configure(cacheEnabled && apiKeys.size() == 1,
+            Math.max(5, config.getInt("context-cache.ttl-minutes", 60)) * 60L, geminiBaseUrl);
+        List<ContextCache.Spec> cacheSpecs = contextCacheSpecs();
+        io.execute(() -> contextCache.refresh(cacheSpecs));
+
+        // Command generation results (cleared on reload: the prompt or fixes may have changed)
+        commandCache.configure(
+            config.getBoolean("command-cache.enabled", true),
+            config.getInt("command-cache.max-entries", 500),
+            Math.max(1, config.getInt("command-cache.ttl-minutes", 360)) * 60000L,
+            config.getInt("command-cache.max-entry-chars", 4000));
+        commandCache.invalidateAll();
+        similarityEnabled = config.getBoolean("similarity.enabled", true);
+        similarityThreshold = Math.max(0.3, Math.min(1.0, config.getDouble("similarity.threshold", 0.9)));
+        commandIndex.setMaxEntries(config.getInt("similarity.max-entries", 2000));
+        imageIndex.setMaxEntries(config.getInt("similarity.max-entries", 2000));
+        searchCache.configure(
+            config.getBoolean("search-cache.enabled", true),
+            config.getInt("search-cache.max-entries", 200),
+            Math.max(1, config.getInt("search-cache.ttl-minutes", 10)) * 60000L,
+            Math.max(0, config.getInt("search-cache.stale-minutes", 60)) * 60000L,
+            config.getInt("search-cache.popular-hits", 3));
+
+        // Local image store and the generated-image result cache on top of it (both kept
+        // across reloads)
+        if (imageStore == null) {
+            imageStore = new ImageStore(getLogger(), getDataFolder().toPath().resolve("images"));
+            imageCache = new ImageCache(getLogger(), getDataFolder().toPath().resolve("image-cache"), imageStore);
+            localImageServer = new LocalImageServer(getLogger(), imageStore);
+        }
+        imageStore.configure(Math.max(1, config.getLong("image-store.max-disk-mb", 1024)) * 1024L * 1024L);
+        imageScrubIntervalMs = Math.max(0, config.getLong("image-store.scrub-interval-hours", 24)) * 3600000L;
+        imageCache.configure(config.getBoolean("image-cache.enabled", true));
+        int localPort = config.getInt("image.local-server.port", 8765);
+        boolean localStarted = localImageServer.configure("local".equalsIgnoreCase(imageHosting),
+            config.getString("image.local-server.bind-address", "0.0.0.0"), localPort,
+            config.getString("image.local-server.public-url", "http://localhost:" + localPort));
+        if (!localStarted) {
+            getLogger().warning("Local image server unavailable. Falling back to Catbox for image hosting.");
+            imageHosting = "catbox";
+        }
+        if (imageProcessor == null) {
+            imageProcessor = new ImageProcessor(getLogger());
+        }
+        imageProcessor.configure(
+            config.getBoolean("image.preview.enabled", true),
+            config.getString("image.preview.format", "jpeg"),
+            config.getInt("image.preview.quality", 85),
+            config.getInt("image.preview.max-size", 1600),
+            config.getInt("image.preview.threads", 2));
+        imageProcessor.configureSource(
+            config.getBoolean("image.i2i-source.normalize", true),
+            config.getInt("image.i2i-source.quality", 90));
+
         getLogger().info("Model configured: " + defaultModelName);
     }
 
+    // Every static system prompt for every model it is sent to
+    private List<ContextCache.Spec> contextCacheSpecs() {
+        List<ContextCache.Spec> specs = new ArrayList<>();
+        String chat = requestWriter.systemInstruction(systemPrompt);
+        String command = requestWriter.systemInstruction(getCommandGenerationSystemPrompt());
+        String search = requestWriter.systemInstruction(getWebSearchSystemPrompt());
+        for (String model : Arrays.asList(MODEL_FLASH, MODEL_PRO)) {
+            specs.add(new ContextCache.Spec("chat", model, chat, false));
+            specs.add(new ContextCache.Spec("command", model, command, false));
+            specs.add(new ContextCache.Spec("search", model, search, true));
+        }
+        String image = requestWriter.systemInstruction(getImageGenerationSystemPrompt());
+        for (String model : Arrays.asList(MODEL_NANOBANANA, MODEL_NANOBANANA_PRO)) {
+            specs.add(new ContextCache.Spec("image", model, image, false));
+        }
+        return specs;
+    }
+
     private String normalizeModelName(String modelName) {
         // Normalize model name to ensure it matches our known constants
         if (modelName == null || modelName.trim().isEmpty()) {
@@ -455,7 +812,7 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         playerResolutions.putIfAbsent(playerId, defaultResolution);
 
         // Lazy-load library from disk
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+        io.execute(IoExecutor.Resource.DISK, () -> {
             List<ImageRecord> library = loadLibrary(playerId);
             if (library != null && !library.isEmpty()) {
                 playerImageLibrary.put(playerId, library);
@@ -485,9 +842,12 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         // Save library on quit, then remove from memory
         List<ImageRecord> library = playerImageLibrary.remove(playerId);
         if (library != null && !library.isEmpty()) {
-            Bukkit.getScheduler().runTaskAsynchronously(this, () -> saveLibrary(playerId, library));
+            io.execute(IoExecutor.Resource.DISK, () -> saveLibrary(playerId, library));
         }
         conversationHistories.remove(playerId);
+        messageCoalescer.discard(playerId);
+        // Keep the mailbox while requests are still running so they stay serialized on rejoin
+        playerMailboxes.computeIfPresent(playerId, (k, mailbox) -> mailbox.depth() == 0 ? null : mailbox);
         playerSessionMode.remove(playerId);
         playerModels.remove(playerId);
         playerImageModels.remove(playerId);
@@ -704,18 +1064,19 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
 
             player.sendMessage(ChatColor.GRAY + "[あなた] " + ChatColor.WHITE + message);
 
-            // Show thinking indicator based on model
-            String currentModel = getPlayerModel(playerId);
-            if (currentModel.equals(MODEL_PRO) || currentModel.contains("pro")) {
-                player.sendMessage(ChatColor.LIGHT_PURPLE + "✦ " + ChatColor.GRAY + "深く思考中...");
-            } else if (currentModel.equals(MODEL_FLASH_THINKING)) {
-                player.sendMessage(ChatColor.GOLD + "✦ " + ChatColor.GRAY + "思考中...");
-            } else {
-                player.sendMessage(ChatColor.AQUA + "✦ " + ChatColor.GRAY + "応答中...");
-            }
+            // Lines typed in quick succession are merged into one user turn
+            coalesceMessage(player, SessionMode.CHAT, message, merged -> {
+                // Show thinking indicator based on model
+                String currentModel = getPlayerModel(playerId);
+                if (currentModel.equals(MODEL_PRO) || currentModel.contains("pro")) {
+                    player.sendMessage(ChatColor.LIGHT_PURPLE + "✦ " + ChatColor.GRAY + "深く思考中...");
+                } else if (currentModel.equals(MODEL_FLASH_THINKING)) {
+                    player.sendMessage(ChatColor.GOLD + "✦ " + ChatColor.GRAY + "思考中...");
+                } else {
+                    player.sendMessage(ChatColor.AQUA + "✦ " + ChatColor.GRAY + "応答中...");
+                }
 
-            Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-                processGeminiChat(player, message);
+                enqueuePlayerRequest(player, () -> processGeminiChat(player, merged));
             });
             return;
         }
@@ -742,10 +1103,10 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
             }
 
             player.sendMessage(ChatColor.GREEN + "[検索] " + ChatColor.WHITE + query);
-            player.sendMessage(ChatColor.GREEN + "✦ " + ChatColor.GRAY + "Web検索中...");
 
-            Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-                processWebSearch(player, query);
+            coalesceMessage(player, SessionMode.SEARCH, query, merged -> {
+                player.sendMessage(ChatColor.GREEN + "✦ " + ChatColor.GRAY + "Web検索中...");
+                enqueuePlayerRequest(player, () -> processWebSearch(player, merged));
             });
             return;
         }
@@ -830,9 +1191,8 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                 player.sendMessage(ChatColor.GRAY + "  モデル: " + getImageModelDisplayName(capturedModel) + " | 比率: " + capturedRatio + " | 解像度: " + capturedRes);
                 player.sendMessage(ChatColor.LIGHT_PURPLE + "✦ " + ChatColor.GRAY + "元画像をダウンロード中...");
 
-                Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-                    processI2IGeneration(player, i2iPrompt, sourceUrl, capturedModel, capturedRatio, capturedRes);
-                });
+                enqueuePlayerRequest(player, () -> CompletableFuture.runAsync(
+                    () -> processI2IGeneration(player, i2iPrompt, sourceUrl, capturedModel, capturedRatio, capturedRes), io::execute));
                 return;
             }
 
@@ -848,9 +1208,8 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                 player.sendMessage(ChatColor.LIGHT_PURPLE + "✦ " + ChatColor.GRAY + "画像を生成中...");
             }
 
-            Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-                processImageGeneration(player, rawInput, capturedModel, capturedRatio, capturedRes);
-            });
+            enqueuePlayerRequest(player, () -> CompletableFuture.runAsync(
+                () -> processImageGeneration(player, rawInput, capturedModel, capturedRatio, capturedRes), io::execute));
             return;
         }
 
@@ -878,10 +1237,10 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
             }
 
             player.sendMessage(ChatColor.GOLD + "[あなた] " + ChatColor.WHITE + rawInput);
-            player.sendMessage(ChatColor.GOLD + "✦ " + ChatColor.GRAY + "コマンド生成中...");
 
-            Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-                processCommandGeneration(player, rawInput);
+            coalesceMessage(player, SessionMode.COMMAND, rawInput, merged -> {
+                player.sendMessage(ChatColor.GOLD + "✦ " + ChatColor.GRAY + "コマンド生成中...");
+                enqueuePlayerRequest(player, () -> processCommandGeneration(player, merged));
             });
             return;
         }
@@ -933,7 +1292,7 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                 String subCommand = args[0].toLowerCase();
 
                 // Check if session is active for most subcommands
-                if (!isSessionActive(playerId) && !subCommand.equals("help")) {
+                if (!isSessionActive(playerId) && !subCommand.equals("help") && !subCommand.equals("cache")) {
                     player.sendMessage(ChatColor.RED + "まず /gemini でシステムを起動してください。");
                     return true;
                 }
@@ -1091,6 +1450,18 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                         conversationHistories.remove(playerId);
                         player.sendMessage(ChatColor.GREEN + "会話履歴をクリアしました。");
                         return true;
+                    case "cache":
+                        handleCacheCommand(player, args);
+                        return true;
+                    case "regenerate": {
+                        Runnable regenerate = pendingRegenerations.remove(playerId);
+                        if (regenerate == null) {
+                            player.sendMessage(ChatColor.RED + "新しく生成できるリクエストがありません。");
+                        } else {
+                            regenerate.run();
+                        }
+                        return true;
+                    }
                     default:
                         player.sendMessage(ChatColor.RED + "不明なサブコマンド: " + subCommand);
                         player.sendMessage(ChatColor.YELLOW + "使用方法: /gemini [chat|search|image|model|help|status|library|command|menu|exit]");
@@ -1152,9 +1523,7 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                     String query = String.join(" ", args);
                     player.sendMessage(ChatColor.GREEN + "[検索] " + ChatColor.WHITE + query);
                     player.sendMessage(ChatColor.GREEN + "✦ " + ChatColor.GRAY + "Web検索中...");
-                    Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-                        processWebSearch(player, query);
-                    });
+                    enqueuePlayerRequest(player, () -> processWebSearch(player, query));
                 }
                 return true;
             }
@@ -1208,9 +1577,8 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                     final String capRes = getPlayerResolution(playerId);
                     player.sendMessage(ChatColor.LIGHT_PURPLE + "[画像生成] " + ChatColor.WHITE + prompt);
                     player.sendMessage(ChatColor.LIGHT_PURPLE + "✦ " + ChatColor.GRAY + "画像を生成中...");
-                    Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-                        processImageGeneration(player, prompt, capModel, capRatio, capRes);
-                    });
+                    enqueuePlayerRequest(player, () -> CompletableFuture.runAsync(
+                        () -> processImageGeneration(player, prompt, capModel, capRatio, capRes), io::execute));
                 }
                 return true;
             }
@@ -1228,9 +1596,12 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         if (command.getName().equalsIgnoreCase("gemini")) {
             if (args.length == 1) {
                 // First argument - main subcommands
-                List<String> subCommands = Arrays.asList(
+                List<String> subCommands = new ArrayList<>(Arrays.asList(
                     "chat", "search", "image", "model", "help", "status", "library", "command", "history", "menu", "exit", "clear", "imagemodel"
-                );
+                ));
+                if (sender.hasPermission("gemininpc.admin")) {
+                    subCommands.add("cache");
+                }
                 String input = args[0].toLowerCase();
                 completions = subCommands.stream()
                     .filter(s -> s.startsWith(input))
@@ -1257,6 +1628,10 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                     completions = imageSubs.stream()
                         .filter(s -> s.startsWith(input))
                         .collect(Collectors.toList());
+                } else if (subCommand.equals("cache") && sender.hasPermission("gemininpc.admin")) {
+                    completions = Arrays.asList("clear").stream()
+                        .filter(s -> s.startsWith(input))
+                        .collect(Collectors.toList());
                 } else if (subCommand.equals("help")) {
                     // Help topics
                     List<String> topics = Arrays.asList("1", "2", "3", "4", "5", "chat", "search", "image", "model", "commands");
@@ -1502,10 +1877,42 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         player.sendMessage("");
     }
 
-    private void processCommandGeneration(Player player, String userRequest) {
+    private CompletableFuture<Void> processCommandGeneration(Player player, String userRequest) {
+        return processCommandGeneration(player, userRequest, false);
+    }
+
+    // fresh skips the cache and the near-duplicate index ([新しく生成])
+    private CompletableFuture<Void> processCommandGeneration(Player player, String userRequest, boolean fresh) {
         UUID playerId = player.getUniqueId();
         String playerModel = getPlayerModel(playerId);
 
+        // The same request (after folding width, kana, romaji and spacing) reuses the last result
+        String cacheKey = CommandCache.key(playerModel, userRequest);
+        CommandCache.Result cached = fresh ? null : commandCache.get(cacheKey);
+        String similarTo = null;
+        double similarity = 1.0;
+        if (cached == null && !fresh && similarityEnabled) {
+            SimilarityIndex.Match<CommandCache.Result> match = commandIndex.findSimilar(playerModel, userRequest, similarityThreshold);
+            if (match != null) {
+                cached = match.value;
+                similarTo = match.text;
+                similarity = match.similarity;
+            }
+        }
+        if (cached != null) {
+            CommandCache.Result reused = cached;
+            String matchedRequest = similarTo;
+            double matchedSimilarity = similarity;
+            Bukkit.getScheduler().runTask(this, () -> {
+                showCommandResult(player, reused, userRequest);
+                offerRegeneration(player, matchedRequest, matchedSimilarity, () -> {
+                    player.sendMessage(ChatColor.GOLD + "✦ " + ChatColor.GRAY + "コマンド生成中...");
+                    enqueuePlayerRequest(player, () -> processCommandGeneration(player, userRequest, true));
+                });
+            });
+            return CompletableFuture.completedFuture(null);
+        }
+
         JsonArray contents = new JsonArray();
         JsonObject userPart = new JsonObject();
         userPart.addProperty("role", "user");
@@ -1516,18 +1923,94 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         userPart.add("parts", userParts);
         contents.add(userPart);
 
-        String response = callGeminiAPIInternal(contents, playerModel, getCommandGenerationSystemPrompt());
-
-        Bukkit.getScheduler().runTask(this, () -> {
+        // Streaming: each COMMAND line is rendered as soon as it arrives
+        long startedAt = System.currentTimeMillis();
+        List<String> streamedCommands = new ArrayList<>();
+        java.util.concurrent.atomic.AtomicReference<String> answeredBy = new java.util.concurrent.atomic.AtomicReference<>(playerModel);
+        return callGeminiAPIInternal(player, contents, playerModel, getCommandGenerationSystemPrompt(), true, line -> {
+            String trimmed = stripMarkdown(line).trim();
+            if (!trimmed.startsWith("COMMAND:")) return;
+            String cmd = fixCommandSyntax(trimmed.substring("COMMAND:".length()).trim());
+            if (cmd.isEmpty()) return;
+            streamedCommands.add(cmd);
+            int index = streamedCommands.size();
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (index == 1) {
+                    recordFirstVisibleText(startedAt);
+                    sendCommandResultHeader(player, userRequest);
+                }
+                sendCommandEntry(player, cmd, index);
+            });
+        }, answeredBy).thenAccept(response -> Bukkit.getScheduler().runTask(this, () -> {
+            if (response == null && !streamedCommands.isEmpty()) {
+                // The stream broke off: the commands shown so far may be incomplete, so none are cached
+                player.sendMessage(ChatColor.RED + "応答が途中で途切れました。表示されたコマンドは不完全な可能性があります。");
+                return;
+            }
+            if (!streamedCommands.isEmpty()) {
+                String explanation = parseCommandExplanation(response);
+                rememberCommandResult(answeredBy.get(), playerModel, userRequest, cacheKey, new CommandCache.Result(streamedCommands, explanation));
+                sendCommandResultFooter(player, streamedCommands, explanation, userRequest);
+                return;
+            }
             if (response == null || response.isEmpty()) {
                 player.sendMessage(ChatColor.RED + "コマンドを生成できませんでした。別の表現で試してください。");
                 return;
             }
-            displayCommandResult(player, response, userRequest);
-        });
+            recordFirstVisibleText(startedAt);
+            CommandCache.Result result = parseCommandResponse(response);
+            if (result == null) {
+                player.sendMessage(ChatColor.RED + "コマンドを生成できませんでした。");
+                player.sendMessage(ChatColor.GRAY + stripMarkdown(response));
+                return;
+            }
+            rememberCommandResult(answeredBy.get(), playerModel, userRequest, cacheKey, result);
+            showCommandResult(player, result, userRequest);
+        }));
+    }
+
+    private String parseCommandExplanation(String response) {
+        if (response == null) return null;
+        for (String line : stripMarkdown(response).split("\n")) {
+            String trimmed = line.trim();
+            if (trimmed.startsWith("EXPLAIN:")) {
+                return trimmed.substring("EXPLAIN:".length()).trim();
+            }
+        }
+        return null;
+    }
+
+    // Stored under the model that actually answered: a Flash fallback's result must not be
+    // served later as if the requested model had produced it
+    private void rememberCommandResult(String answeredModel, String requestedModel, String request, String cacheKey,
+                                       CommandCache.Result result) {
+        if (!answeredModel.equals(requestedModel)) {
+            cacheKey = CommandCache.key(answeredModel, request);
+        }
+        commandCache.put(cacheKey, result);
+        if (similarityEnabled) {
+            commandIndex.add(answeredModel, request, result);
+            commandIndexDirty = true;
+        }
+    }
+
+    // Shown under a reused result. matchedRequest is the earlier request when it was only
+    // similar (null for an exact repeat); regenerate runs when [新しく生成] is clicked.
+    private void offerRegeneration(Player player, String matchedRequest, double similarity, Runnable regenerate) {
+        pendingRegenerations.put(player.getUniqueId(), regenerate);
+        if (matchedRequest != null) {
+            player.sendMessage(ChatColor.GRAY + "  (似たリクエスト「" + matchedRequest + "」の結果です / 類似度 "
+                + Math.round(similarity * 100) + "%)");
+        } else {
+            player.sendMessage(ChatColor.GRAY + "  (以前の生成結果を表示しています)");
+        }
+        sendClickableLine(player,
+            text("  ", net.md_5.bungee.api.ChatColor.GRAY),
+            createClickableButton("[新しく生成]", "/gemini regenerate", "クリックでAIに新しく生成させる", net.md_5.bungee.api.ChatColor.AQUA));
     }
 
-    private void displayCommandResult(Player player, String response, String originalRequest) {
+    // COMMAND:/EXPLAIN: lines with the commands syntax-fixed; null when no command was found
+    private CommandCache.Result parseCommandResponse(String response) {
         String cleanResponse = stripMarkdown(response);
         List<String> commands = new ArrayList<>();
         String explanation = null;
@@ -1556,12 +2039,26 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         }
 
         if (commands.isEmpty()) {
-            player.sendMessage(ChatColor.RED + "コマンドを生成できませんでした。");
-            player.sendMessage(ChatColor.GRAY + cleanResponse);
-            return;
+            return null;
+        }
+
+        // Auto-fix snake_case and syntax issues in AI-generated commands
+        for (int i = 0; i < commands.size(); i++) {
+            commands.set(i, fixCommandSyntax(commands.get(i)));
+        }
+        return new CommandCache.Result(commands, explanation);
+    }
+
+    private void showCommandResult(Player player, CommandCache.Result result, String originalRequest) {
+        sendCommandResultHeader(player, originalRequest);
+        List<String> commands = result.commands;
+        for (int i = 0; i < commands.size(); i++) {
+            sendCommandEntry(player, commands.get(i), commands.size() > 1 ? i + 1 : 0);
         }
+        sendCommandResultFooter(player, commands, result.explanation, originalRequest);
+    }
 
-        // Display result UI
+    private void sendCommandResultHeader(Player player, String originalRequest) {
         player.sendMessage("");
         player.sendMessage(ChatColor.GOLD + "╔═══════════════════════════════════════════════╗");
         player.sendMessage(ChatColor.GOLD + "║  " + ChatColor.WHITE + "コマンド生成結果" + ChatColor.GOLD + "                           ║");
@@ -1570,26 +2067,23 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         player.sendMessage(ChatColor.GRAY + "  リクエスト: " + ChatColor.WHITE + originalRequest);
         player.sendMessage("");
         player.sendMessage(ChatColor.YELLOW + "  コマンド:");
+    }
 
-        // Auto-fix snake_case and syntax issues in AI-generated commands
-        for (int i = 0; i < commands.size(); i++) {
-            commands.set(i, fixCommandSyntax(commands.get(i)));
-        }
-
-        for (int i = 0; i < commands.size(); i++) {
-            String cmd = commands.get(i);
-            if (commands.size() > 1) {
-                player.sendMessage(ChatColor.AQUA + "  " + (i + 1) + ". " + cmd);
-            } else {
-                player.sendMessage(ChatColor.AQUA + "  " + cmd);
-            }
-            sendClickableLine(player,
-                text("     ", net.md_5.bungee.api.ChatColor.WHITE),
-                createClickableButton("[実行]", cmd, "クリックでコマンドを実行", net.md_5.bungee.api.ChatColor.GREEN, true),
-                text(" ", net.md_5.bungee.api.ChatColor.GRAY),
-                createSuggestButton("[コピー]", cmd, "クリックでチャットバーにコピー", net.md_5.bungee.api.ChatColor.YELLOW, false));
+    // number <= 0 shows the command without a list number
+    private void sendCommandEntry(Player player, String cmd, int number) {
+        if (number > 0) {
+            player.sendMessage(ChatColor.AQUA + "  " + number + ". " + cmd);
+        } else {
+            player.sendMessage(ChatColor.AQUA + "  " + cmd);
         }
+        sendClickableLine(player,
+            text("     ", net.md_5.bungee.api.ChatColor.WHITE),
+            createClickableButton("[実行]", cmd, "クリックでコマンドを実行", net.md_5.bungee.api.ChatColor.GREEN, true),
+            text(" ", net.md_5.bungee.api.ChatColor.GRAY),
+            createSuggestButton("[コピー]", cmd, "クリックでチャットバーにコピー", net.md_5.bungee.api.ChatColor.YELLOW, false));
+    }
 
+    private void sendCommandResultFooter(Player player, List<String> commands, String explanation, String originalRequest) {
         player.sendMessage("");
 
         if (explanation != null && !explanation.isEmpty()) {
@@ -2172,11 +2666,13 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         }
     }
 
-    private void sendImageLink(Player player, String imageUrl, String prompt, String modelName, String aspectRatio, String resolution) {
+    // imageHash: the image in the local store, or null when it is only hosted remotely
+    private void sendImageLink(Player player, String imageUrl, String prompt, String modelName, String aspectRatio, String resolution,
+                               String imageHash) {
         String displayModel = getImageModelDisplayName(modelName);
 
         // Save to library
-        addToLibrary(player.getUniqueId(), prompt, modelName, aspectRatio, resolution, imageUrl);
+        addToLibrary(player.getUniqueId(), prompt, modelName, aspectRatio, resolution, imageUrl, imageHash);
 
         Bukkit.getScheduler().runTask(this, () -> {
             if (!player.isOnline()) return;
@@ -2246,7 +2742,22 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         int librarySize = playerImageLibrary.containsKey(playerId) ? playerImageLibrary.get(playerId).size() : 0;
         player.sendMessage(ChatColor.GOLD + "║ " + ChatColor.GRAY + "会話履歴: " + ChatColor.WHITE + historySize + " メッセージ" + ChatColor.GOLD + "                ║");
         player.sendMessage(ChatColor.GOLD + "║ " + ChatColor.GRAY + "ライブラリ: " + ChatColor.WHITE + librarySize + " 枚" + ChatColor.GOLD + "                       ║");
+        player.sendMessage(ChatColor.GOLD + "║ " + ChatColor.GRAY + "処理中/待ち: " + ChatColor.WHITE + getPlayerQueueDepth(playerId) + " 件" + ChatColor.GOLD + "                     ║");
+        player.sendMessage(ChatColor.GOLD + "║ " + ChatColor.GRAY + "サーバー混雑: " + ChatColor.WHITE
+            + "テキスト " + admission.getActive(AdmissionController.Lane.TEXT) + "/" + admission.getLimit(AdmissionController.Lane.TEXT)
+            + " (待ち " + admission.getWaiting(AdmissionController.Lane.TEXT) + ")"
+            + " / 画像 " + admission.getActive(AdmissionController.Lane.IMAGE) + "/" + admission.getLimit(AdmissionController.Lane.IMAGE)
+            + " (待ち " + admission.getWaiting(AdmissionController.Lane.IMAGE) + ")" + ChatColor.GOLD + " ║");
+        String firstText = firstTextLatency.count() == 0 ? "-"
+            : "直近" + firstTextLatency.windowSize() + "件 平均 " + firstTextLatency.average() + "ms / p95 "
+                + firstTextLatency.percentile(95) + "ms";
+        player.sendMessage(ChatColor.GOLD + "║ " + ChatColor.GRAY + "初回表示: " + ChatColor.WHITE + firstText + ChatColor.GOLD + " ║");
+        player.sendMessage(ChatColor.GOLD + "║ " + ChatColor.GRAY + "トークン(累計): " + ChatColor.WHITE + "入力 " + promptTokensUsed.get()
+            + " (キャッシュ " + cachedTokensUsed.get() + ") / 出力 " + outputTokensUsed.get() + ChatColor.GOLD + " ║");
         player.sendMessage(ChatColor.GOLD + "╚═══════════════════════════════════════════════╝");
+        if (player.hasPermission("gemininpc.admin")) {
+            showAdminStatus(player);
+        }
         player.sendMessage("");
         sendClickableLine(player,
             text("    ", net.md_5.bungee.api.ChatColor.WHITE),
@@ -2256,6 +2767,149 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         player.sendMessage("");
     }
 
+    // /gemini cache [clear] (admin): response cache stats, or drop every cached result
+    private void handleCacheCommand(Player player, String[] args) {
+        if (!player.hasPermission("gemininpc.admin")) {
+            player.sendMessage(ChatColor.RED + "権限がありません。");
+            return;
+        }
+        if (args.length > 1 && args[1].equalsIgnoreCase("clear")) {
+            int removed = commandCache.invalidateAll() + searchCache.invalidateAll() + commandIndex.size() + imageIndex.size()
+                + imageCache.invalidateAll();
+            commandIndex.clear();
+            imageIndex.clear();
+            commandIndexDirty = true;
+            player.sendMessage(ChatColor.GREEN + "応答キャッシュを削除しました (" + removed + "件)");
+            return;
+        }
+        showCacheStats(player);
+        player.sendMessage(ChatColor.GRAY + "  /gemini cache clear で全削除");
+    }
+
+    private void showCacheStats(Player player) {
+        if (!commandCache.isEnabled()) {
+            player.sendMessage(ChatColor.GRAY + "  コマンド生成キャッシュ: " + ChatColor.WHITE + "無効");
+        } else {
+            long hits = commandCache.getHits();
+            long lookups = hits + commandCache.getMisses();
+            player.sendMessage(ChatColor.GRAY + "  コマンド生成キャッシュ: " + ChatColor.WHITE
+                + commandCache.size() + "/" + commandCache.getMaxEntries() + "件 / ヒット " + hits + "/" + lookups
+                + (lookups > 0 ? " (" + (hits * 100 / lookups) + "%)" : "")
+                + ChatColor.GRAY + " (追い出し " + commandCache.getEvictions() + " / サイズ超過 " + commandCache.getOversized() + ")");
+        }
+        if (similarityEnabled) {
+            player.sendMessage(ChatColor.GRAY + "  類似検索: " + ChatColor.WHITE
+                + "コマンド " + commandIndex.getHits() + "/" + commandIndex.getLookups() + " (" + commandIndex.size() + "件)"
+                + " / 画像 " + imageIndex.getHits() + "/" + imageIndex.getLookups() + " (" + imageIndex.size() + "件)");
+        }
+        if (!searchCache.isEnabled()) {
+            player.sendMessage(ChatColor.GRAY + "  検索キャッシュ: " + ChatColor.WHITE + "無効");
+        } else {
+            player.sendMessage(ChatColor.GRAY + "  検索キャッシュ: " + ChatColor.WHITE
+                + searchCache.size() + "/" + searchCache.getMaxEntries() + "件 / ヒット " + searchCache.getHits()
+                + " / 期限切れ利用 " + searchCache.getStaleHits() + " / 相乗り " + searchCache.getCoalesced()
+                + ChatColor.GRAY + " (API呼び出し " + searchCache.getMisses() + " + 裏で更新 " + searchCache.getRefreshes() + ")");
+        }
+        if (!imageCache.isEnabled()) {
+            player.sendMessage(ChatColor.GRAY + "  画像キャッシュ: " + ChatColor.WHITE + "無効");
+        } else {
+            player.sendMessage(ChatColor.GRAY + "  画像キャッシュ: " + ChatColor.WHITE
+                + imageCache.size() + "件 / ヒット " + imageCache.getHits()
+                + "/" + (imageCache.getHits() + imageCache.getMisses()));
+        }
+        long lastScrub = imageStore.getLastScrubAt();
+        player.sendMessage(ChatColor.GRAY + "  画像ストア: " + ChatColor.WHITE
+            + imageStore.size() + "枚 / " + (imageStore.getTotalBytes() / (1024 * 1024)) + "/"
+            + (imageStore.getMaxBytes() / (1024 * 1024)) + "MB"
+            + ChatColor.GRAY + " (追い出し " + imageStore.getEvictions() + " / 破損 " + imageStore.getCorrupted()
+            + " / 最終検査 " + (lastScrub > 0 ? ((System.currentTimeMillis() - lastScrub) / 60000) + "分前" : "未実施") + ")");
+    }
+
+    // Server-wide internals for operators: admission, learned per-model limits, pools
+    private void showAdminStatus(Player player) {
+        player.sendMessage("");
+        player.sendMessage(ChatColor.RED + "[管理者] " + ChatColor.GRAY + "Gemini同時実行: " + ChatColor.WHITE
+            + admission.getGlobalActive() + "/" + admission.getGlobalLimit()
+            + ChatColor.GRAY + "  HTTP: " + ChatColor.WHITE + geminiHttp.getInFlight() + "/" + geminiHttp.getMaxConnections());
+        if (!adaptiveLimiter.isEnabled()) {
+            player.sendMessage(ChatColor.GRAY + "  自動上限調整: " + ChatColor.WHITE + "無効");
+        }
+        for (AdaptiveLimiter.Stats stats : adaptiveLimiter.snapshot()) {
+            player.sendMessage(ChatColor.GRAY + "  " + stats.model + ": " + ChatColor.WHITE
+                + "上限 " + String.format("%.1f", stats.limit) + " / 実行中 " + stats.inFlight
+                + ChatColor.GRAY + " (成功 " + stats.successes + " / 429・503 " + stats.overloads
+                + " / 遅延で縮小 " + stats.latencyDrops + " / 平均 " + stats.averageRttMs + "ms)");
+        }
+        for (CircuitBreaker.Stats stats : circuitBreaker.snapshot()) {
+            String state;
+            switch (stats.state) {
+                case OPEN: state = ChatColor.RED + "遮断中(フォールバック)"; break;
+                case HALF_OPEN: state = ChatColor.YELLOW + "試行中"; break;
+                default: state = ChatColor.GREEN + "正常"; break;
+            }
+            player.sendMessage(ChatColor.GRAY + "  遮断器 " + stats.model + ": " + state + ChatColor.GRAY
+                + " (失敗率 " + stats.failureRate + "% / " + stats.calls + "件, 遮断 " + stats.timesOpened + "回)");
+        }
+        if (requestHedger.isEnabled()) {
+            long p = requestHedger.getFirstBytePercentile(MODEL_PRO);
+            player.sendMessage(ChatColor.GRAY + "  ヘッジ: " + ChatColor.WHITE + "発行 " + requestHedger.getHedgesFired()
+                + " / 後発が勝利 " + requestHedger.getHedgeWins() + " / 予算 " + String.format("%.1f", requestHedger.getBudget())
+                + ChatColor.GRAY + " (Pro 初回応答 " + (p < 0 ? "-" : p + "ms") + ")");
+        }
+        if (contextCache.isEnabled()) {
+            player.sendMessage(ChatColor.GRAY + "  コンテキストキャッシュ: " + ChatColor.WHITE + "利用 " + contextCache.getHits()
+                + " / 未使用 " + contextCache.getMisses());
+            for (ContextCache.Stats stats : contextCache.snapshot()) {
+                player.sendMessage(ChatColor.GRAY + "    " + stats.label + " " + stats.model + ": "
+                    + (stats.live ? ChatColor.GREEN + "有効(残り" + (stats.expiresInMs / 60000) + "分)"
+                        : ChatColor.YELLOW + "未作成" + (stats.lastError != null ? ChatColor.GRAY + " " + stats.lastError : "")));
+            }
+        } else {
+            player.sendMessage(ChatColor.GRAY + "  コンテキストキャッシュ: " + ChatColor.WHITE + "無効");
+        }
+        player.sendMessage(ChatColor.GRAY + "  画像アップロード: " + ChatColor.WHITE + hostingUploader.getUploads() + "件"
+            + (hostingUploader.isHedging() ? " / ヘッジ発行 " + hostingUploader.getHedgesFired()
+                + " / 後発が勝利 " + hostingUploader.getHedgeWins() : " / ヘッジ無効"));
+        for (HostingUploader.Stats stats : hostingUploader.snapshot(uploadHosts())) {
+            player.sendMessage(ChatColor.GRAY + "    " + stats.name + ": " + ChatColor.WHITE
+                + "スコア " + String.format("%.2f", stats.score) + " / 成功率 " + stats.successPercent + "%"
+                + " / 中央値 " + (stats.p50Ms < 0 ? "-" : String.format("%.1f秒", stats.p50Ms / 1000.0))
+                + " / p90 " + (stats.p90Ms < 0 ? "-" : String.format("%.1f秒", stats.p90Ms / 1000.0))
+                + ChatColor.GRAY + " (" + stats.attempts + "回, 中止 " + stats.cancelled + ")");
+        }
+        if (imageProcessor.isEnabled()) {
+            long previewIn = imageProcessor.getBytesIn();
+            player.sendMessage(ChatColor.GRAY + "  画像プレビュー: " + ChatColor.WHITE + "作成 " + imageProcessor.getProcessed()
+                + " / 元画像を使用 " + imageProcessor.getSkipped()
+                + " / サイズ " + (previewIn == 0 ? "-" : (imageProcessor.getBytesOut() * 100 / previewIn) + "%")
+                + ChatColor.GRAY + " (" + imageProcessor.getFormat() + ", 長辺 " + imageProcessor.getMaxEdge() + "px, 実行中 "
+                + imageProcessor.getActive() + "/" + imageProcessor.getThreads() + ")");
+        } else {
+            player.sendMessage(ChatColor.GRAY + "  画像プレビュー: " + ChatColor.WHITE + "無効");
+        }
+        if (imageProcessor.isSourceEnabled()) {
+            long sourceIn = imageProcessor.getSourceBytesIn();
+            player.sendMessage(ChatColor.GRAY + "  I2I元画像の縮小: " + ChatColor.WHITE + imageProcessor.getSourcesNormalized() + "件"
+                + " / サイズ " + (sourceIn == 0 ? "-" : (imageProcessor.getSourceBytesOut() * 100 / sourceIn) + "%"));
+        }
+        showCacheStats(player);
+        for (ApiKeyPool.Stats stats : apiKeys.snapshot()) {
+            player.sendMessage(ChatColor.GRAY + "  APIキー " + stats.label + ": " + ChatColor.WHITE
+                + "実行中 " + stats.inFlight + " / 直近1分 " + stats.lastMinute + " / 累計 " + stats.requests
+                + " / 429 " + stats.throttled + " / トークン " + stats.tokens
+                + (stats.quarantinedForMs > 0 ? ChatColor.RED + " 休止中(残り" + (stats.quarantinedForMs / 1000 + 1) + "秒)" : ""));
+        }
+        StringBuilder pools = new StringBuilder();
+        for (IoExecutor.Resource resource : IoExecutor.Resource.values()) {
+            if (pools.length() > 0) pools.append(" ");
+            pools.append(resource.name().toLowerCase()).append(" ").append(io.getActive(resource))
+                .append("/").append(io.getLimit(resource));
+            int waiting = io.getWaiting(resource);
+            if (waiting > 0) pools.append("(待ち").append(waiting).append(")");
+        }
+        player.sendMessage(ChatColor.GRAY + "  I/O: " + ChatColor.WHITE + pools);
+    }
+
     private void showModelSelection(Player player) {
         UUID playerId = player.getUniqueId();
         String currentModel = getPlayerModel(playerId);
@@ -2626,7 +3280,58 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
 
     // ==================== Chat Processing ====================
 
-    private void processGeminiChat(Player player, String userMessage) {
+    // Runs the player's requests one at a time in the order they were sent, so concurrent
+    // messages can neither interleave on the conversation history nor fire parallel API calls
+    private void enqueuePlayerRequest(Player player, java.util.function.Supplier<CompletableFuture<?>> request) {
+        PlayerMailbox mailbox = playerMailboxes.computeIfAbsent(player.getUniqueId(),
+            k -> new PlayerMailbox(io::execute, getLogger()));
+        if (mailbox.depth() > mailboxMaxQueued) {
+            player.sendMessage(ChatColor.RED + "処理待ちのリクエストが多すぎます。前の応答が終わってから送信してください。");
+            return;
+        }
+        int ahead = mailbox.submit(request);
+        if (ahead > 0) {
+            player.sendMessage(ChatColor.GRAY + "  (前のリクエストの完了待ち: " + ahead + "件)");
+        }
+    }
+
+    // Buffers the line for the mode's debounce window; dispatch runs on the main thread with
+    // all lines the player sent within the window joined by newlines
+    private void coalesceMessage(Player player, SessionMode mode, String line, java.util.function.Consumer<String> dispatch) {
+        long windowMs;
+        switch (mode) {
+            case CHAT: windowMs = chatCoalesceMs; break;
+            case SEARCH: windowMs = searchCoalesceMs; break;
+            case COMMAND: windowMs = commandCoalesceMs; break;
+            default: windowMs = 0; break;
+        }
+        if (windowMs <= 0) {
+            // Lines still buffered (from another mode) are dispatched in place, ahead of this one
+            messageCoalescer.flush(player.getUniqueId());
+            dispatch.accept(line);
+            return;
+        }
+        messageCoalescer.submit(player.getUniqueId(), mode.name(), line, windowMs, merged -> {
+            // A flush or a full buffer is dispatched by the caller on the main thread, in order
+            // with the line being handled; only the window timer fires on another thread
+            if (Bukkit.isPrimaryThread()) {
+                if (player.isOnline()) dispatch.accept(merged);
+                return;
+            }
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (player.isOnline()) {
+                    dispatch.accept(merged);
+                }
+            });
+        });
+    }
+
+    private int getPlayerQueueDepth(UUID playerId) {
+        PlayerMailbox mailbox = playerMailboxes.get(playerId);
+        return mailbox == null ? 0 : mailbox.depth();
+    }
+
+    private CompletableFuture<Void> processGeminiChat(Player player, String userMessage) {
         UUID playerId = player.getUniqueId();
 
         JsonArray history = conversationHistories.computeIfAbsent(playerId, k -> new JsonArray());
@@ -2645,37 +3350,64 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         }
 
         String playerModel = getPlayerModel(playerId);
-        String response = callGeminiAPIInternal(history, playerModel, systemPrompt);
-
-        if (response != null && !response.isEmpty()) {
-            JsonObject assistantPart = new JsonObject();
-            assistantPart.addProperty("role", "model");
-            JsonArray assistantParts = new JsonArray();
-            JsonObject respTextPart = new JsonObject();
-            respTextPart.addProperty("text", response);
-            assistantParts.add(respTextPart);
-            assistantPart.add("parts", assistantParts);
-            history.add(assistantPart);
-
-            final String finalResponse = stripMarkdown(response);
-            Bukkit.getScheduler().runTask(this, () -> {
-                player.sendMessage("");
-                player.sendMessage(ChatColor.AQUA + "[" + npcName + "] " + ChatColor.WHITE + finalResponse);
-                player.sendMessage("");
-                sendModeFooter(player);
-            });
-            logToSpreadsheet(player, "相談", getPlayerModel(playerId), userMessage, finalResponse);
-        } else {
+
+        // Streaming: show each sentence as soon as it is complete
+        long startedAt = System.currentTimeMillis();
+        java.util.concurrent.atomic.AtomicBoolean streamed = new java.util.concurrent.atomic.AtomicBoolean();
+        return callGeminiAPIInternal(player, history, playerModel, systemPrompt, false, segment -> {
+            String cleanSegment = stripMarkdown(segment);
+            boolean first = streamed.compareAndSet(false, true);
             Bukkit.getScheduler().runTask(this, () -> {
-                player.sendMessage(ChatColor.RED + "[" + npcName + "] " +
-                    "ごめんなさい、うまく聞き取れませんでした。もう一度教えてもらえますか？");
+                if (first) {
+                    recordFirstVisibleText(startedAt);
+                    player.sendMessage("");
+                    player.sendMessage(ChatColor.AQUA + "[" + npcName + "] " + ChatColor.WHITE + cleanSegment);
+                } else {
+                    player.sendMessage(ChatColor.WHITE + cleanSegment);
+                }
             });
-        }
+        }).thenAccept(response -> {
+            if (response != null && !response.isEmpty()) {
+                JsonObject assistantPart = new JsonObject();
+                assistantPart.addProperty("role", "model");
+                JsonArray assistantParts = new JsonArray();
+                JsonObject respTextPart = new JsonObject();
+                respTextPart.addProperty("text", response);
+                assistantParts.add(respTextPart);
+                assistantPart.add("parts", assistantParts);
+                history.add(assistantPart);
+
+                final String finalResponse = stripMarkdown(response);
+                final boolean alreadyShown = streamed.get();
+                Bukkit.getScheduler().runTask(this, () -> {
+                    if (!alreadyShown) {
+                        recordFirstVisibleText(startedAt);
+                        player.sendMessage("");
+                        player.sendMessage(ChatColor.AQUA + "[" + npcName + "] " + ChatColor.WHITE + finalResponse);
+                    }
+                    player.sendMessage("");
+                    sendModeFooter(player);
+                });
+                logToSpreadsheet(player, "相談", getPlayerModel(playerId), userMessage, finalResponse);
+            } else if (streamed.get()) {
+                // The stream broke off: what was shown is not kept in the history
+                Bukkit.getScheduler().runTask(this, () -> {
+                    player.sendMessage(ChatColor.RED + "応答が途中で途切れました。もう一度お試しください。");
+                    player.sendMessage("");
+                    sendModeFooter(player);
+                });
+            } else {
+                Bukkit.getScheduler().runTask(this, () -> {
+                    player.sendMessage(ChatColor.RED + "[" + npcName + "] " +
+                        "ごめんなさい、うまく聞き取れませんでした。もう一度教えてもらえますか？");
+                });
+            }
 
-        conversationHistories.put(playerId, history);
+            conversationHistories.put(playerId, history);
+        });
     }
 
-    private void processWebSearch(Player player, String query) {
+    private CompletableFuture<Void> processWebSearch(Player player, String query) {
         UUID playerId = player.getUniqueId();
         String playerModel = getPlayerModel(playerId);
 
@@ -2689,61 +3421,91 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         userPart.add("parts", userParts);
         contents.add(userPart);
 
-        // リトライ: 503/429時に最大2回リトライ + Flashフォールバック
-        WebSearchResult searchResult = null;
-        String[] searchModels = {playerModel, playerModel, MODEL_FLASH};
-        int[] searchDelays = {0, 3000, 1000};
-        for (int attempt = 0; attempt < searchModels.length; attempt++) {
-            if (attempt == 2 && MODEL_FLASH.equals(playerModel)) break;
-            if (searchDelays[attempt] > 0) {
-                try { Thread.sleep(searchDelays[attempt]); } catch (InterruptedException ie) { break; }
-                getLogger().info("[if-Gemini] Search retry attempt " + attempt + " with: " + searchModels[attempt]);
-            }
-            searchResult = callGeminiAPIWithSearch(contents, searchModels[attempt]);
-            if (searchResult != null) break;
-        }
-        final WebSearchResult result = searchResult;
+        // Streaming: the header is shown with the first sentence, then each sentence as it arrives
+        long startedAt = System.currentTimeMillis();
+        java.util.concurrent.atomic.AtomicBoolean streamed = new java.util.concurrent.atomic.AtomicBoolean();
+        java.util.function.Consumer<String> onSegment = segment -> {
+            List<String> wrappedLines = wrapText(stripMarkdown(segment), 50);
+            boolean first = streamed.compareAndSet(false, true);
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (first) {
+                    recordFirstVisibleText(startedAt);
+                    sendSearchResultHeader(player);
+                }
+                for (String wrappedLine : wrappedLines) {
+                    player.sendMessage(ChatColor.WHITE + wrappedLine);
+                }
+            });
+        };
+
+        // リトライ: 503/429時はバックオフ付きで再試行 + Flashフォールバック
+        // Identical queries (after normalization) share one call and its cached result; a
+        // background refresh of a stale popular result does not stream into anyone's chat.
+        // An answer from the Flash fallback is shown but not stored under the requested model.
+        String cacheKey = playerModel + "\n" + RequestNormalizer.normalize(query);
+        return searchCache.get(cacheKey, background -> callGeminiAPIWithSearchRetry(player, contents, playerModel,
+                background ? null : onSegment),
+                result -> result.model == null || result.model.equals(playerModel)).thenAccept(result -> {
+            final boolean alreadyShown = streamed.get();
 
-        Bukkit.getScheduler().runTask(this, () -> {
-            player.sendMessage("");
-            player.sendMessage(ChatColor.GREEN + "╔═══════════════════════════════════════════════╗");
-            player.sendMessage(ChatColor.GREEN + "║  " + ChatColor.WHITE + "検索結果" + ChatColor.GREEN + "                                   ║");
-            player.sendMessage(ChatColor.GREEN + "╚═══════════════════════════════════════════════╝");
-
-            if (result != null && result.text != null && !result.text.isEmpty()) {
-                String cleanText = stripMarkdown(result.text);
-                String[] lines = cleanText.split("\n");
-                for (String line : lines) {
-                    if (!line.trim().isEmpty()) {
-                        List<String> wrappedLines = wrapText(line.trim(), 50);
-                        for (String wrappedLine : wrappedLines) {
-                            player.sendMessage(ChatColor.WHITE + wrappedLine);
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (!alreadyShown) {
+                    recordFirstVisibleText(startedAt);
+                    sendSearchResultHeader(player);
+                }
+
+                if (alreadyShown && result == null) {
+                    // The stream broke off after part of the answer was shown (nothing is cached)
+                    player.sendMessage(ChatColor.RED + "応答が途中で途切れました。もう一度お試しください。");
+                } else if (alreadyShown || (result != null && result.text != null && !result.text.isEmpty())) {
+                    if (!alreadyShown) {
+                        String cleanText = stripMarkdown(result.text);
+                        String[] lines = cleanText.split("\n");
+                        for (String line : lines) {
+                            if (!line.trim().isEmpty()) {
+                                List<String> wrappedLines = wrapText(line.trim(), 50);
+                                for (String wrappedLine : wrappedLines) {
+                                    player.sendMessage(ChatColor.WHITE + wrappedLine);
+                                }
+                            }
                         }
                     }
-                }
 
-                if (result.sources != null && !result.sources.isEmpty()) {
-                    player.sendMessage("");
-                    player.sendMessage(ChatColor.GRAY + "--- 情報源 ---");
-                    int count = 0;
-                    for (String source : result.sources) {
-                        if (count >= 3) break;
-                        player.sendMessage(ChatColor.BLUE + "• " + ChatColor.GRAY + source);
-                        count++;
+                    if (result != null && result.sources != null && !result.sources.isEmpty()) {
+                        player.sendMessage("");
+                        player.sendMessage(ChatColor.GRAY + "--- 情報源 ---");
+                        int count = 0;
+                        for (String source : result.sources) {
+                            if (count >= 3) break;
+                            player.sendMessage(ChatColor.BLUE + "• " + ChatColor.GRAY + source);
+                            count++;
+                        }
                     }
+                } else {
+                    player.sendMessage(ChatColor.RED + "検索結果を取得できませんでした。");
+                    player.sendMessage(ChatColor.GRAY + "別のキーワードで試してみてください。");
                 }
-            } else {
-                player.sendMessage(ChatColor.RED + "検索結果を取得できませんでした。");
-                player.sendMessage(ChatColor.GRAY + "別のキーワードで試してみてください。");
-            }
 
-            player.sendMessage("");
-            sendModeFooter(player);
+                player.sendMessage("");
+                sendModeFooter(player);
+            });
+
+            // Log to spreadsheet
+            String resultText = (result != null && result.text != null) ? stripMarkdown(result.text) : "検索失敗";
+            logToSpreadsheet(player, "検索", playerModel, query, resultText);
         });
+    }
 
-        // Log to spreadsheet
-        String resultText = (result != null && result.text != null) ? stripMarkdown(result.text) : "検索失敗";
-        logToSpreadsheet(player, "検索", playerModel, query, resultText);
+    private void sendSearchResultHeader(Player player) {
+        player.sendMessage("");
+        player.sendMessage(ChatColor.GREEN + "╔═══════════════════════════════════════════════╗");
+        player.sendMessage(ChatColor.GREEN + "║  " + ChatColor.WHITE + "検索結果" + ChatColor.GREEN + "                                   ║");
+        player.sendMessage(ChatColor.GREEN + "╚═══════════════════════════════════════════════╝");
+    }
+
+    // Time from request dispatch until the first response text reaches the player's chat
+    private void recordFirstVisibleText(long startedAt) {
+        firstTextLatency.record(System.currentTimeMillis() - startedAt);
     }
 
     private List<String> wrapText(String text, int maxLength) {
@@ -2779,6 +3541,7 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
     private static class WebSearchResult {
         String text;
         List<String> sources;
+        String model;   // the model that answered (set by callGeminiAPIWithSearchRetry)
 
         WebSearchResult(String text, List<String> sources) {
             this.text = text;
@@ -2788,12 +3551,44 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
 
     // ==================== Image Generation ====================
 
+    // A prompt containing --fresh skips the result cache and the near-duplicate lookup
     private void processImageGeneration(Player player, String prompt, String imageModel, String aspectRatio, String resolution) {
+        boolean fresh = prompt.contains(FRESH_FLAG) && !prompt.replace(FRESH_FLAG, "").trim().isEmpty();
+        processImageGeneration(player, fresh ? prompt.replace(FRESH_FLAG, "").trim() : prompt,
+            imageModel, aspectRatio, resolution, fresh);
+    }
+
+    // fresh skips the result cache and the near-duplicate lookup ([新しく生成], --fresh)
+    private void processImageGeneration(Player player, String prompt, String imageModel, String aspectRatio, String resolution,
+                                        boolean fresh) {
+        if (!fresh && serveCachedImage(player, prompt, imageModel, aspectRatio, resolution)) {
+            return;
+        }
+        if (!fresh && similarityEnabled) {
+            SimilarityIndex.Match<ImageRecord> match = imageIndex.findSimilar(
+                imageScope(imageModel, aspectRatio, resolution), prompt, similarityThreshold);
+            if (match != null && isImageUrlAlive(match.value)) {
+                ImageRecord record = match.value;
+                sendImageLink(player, record.imageUrl, record.prompt, record.modelName, record.aspectRatio, record.resolution,
+                    record.imageHash);
+                Bukkit.getScheduler().runTask(this, () -> {
+                    if (!player.isOnline()) return;
+                    offerRegeneration(player, match.text, match.similarity,
+                        () -> regenerateImage(player, prompt, imageModel, aspectRatio, resolution));
+                });
+                return;
+            }
+        }
+
+        Path imageFile = null;
         try {
-            // Step 1: Call Gemini Image API
-            byte[] imageData = callGeminiImageAPI(prompt, imageModel, aspectRatio, resolution);
+            // Step 1: Call Gemini Image API (decoded straight into a spool file)
+            ModelRoute route = routeModel(player, imageModel, MODEL_NANOBANANA, true);
+            String routedModel = route.model;
+            imageFile = admit(AdmissionController.Lane.IMAGE, route, player,
+                () -> callGeminiImageAPI(prompt, routedModel, aspectRatio, resolution));
 
-            if (imageData == null || imageData.length == 0) {
+            if (imageFile == null || Files.size(imageFile) == 0) {
                 Bukkit.getScheduler().runTask(this, () -> {
                     if (!player.isOnline()) return;
                     player.sendMessage(ChatColor.RED + "[画像生成] 画像の生成に失敗しました。");
@@ -2802,13 +3597,11 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                 return;
             }
 
-            // Step 2: Upload image to hosting service
-            Bukkit.getScheduler().runTask(this, () -> {
-                if (!player.isOnline()) return;
-                player.sendMessage(ChatColor.LIGHT_PURPLE + "✦ " + ChatColor.GRAY + "画像をアップロード中...");
-            });
-
-            String imageUrl = uploadImage(imageData);
+            // Step 2: Keep the original locally (library I2I, and an exact repeat needs neither
+            // the model nor an upload), then link its preview from the local image server
+            // (image.hosting: local) or a hosting service
+            String imageHash = storeImage(imageFile);
+            String imageUrl = linkImage(player, imageHash, imageFile);
 
             if (imageUrl == null || imageUrl.isEmpty()) {
                 Bukkit.getScheduler().runTask(this, () -> {
@@ -2832,8 +3625,17 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
             }
 
             // Step 3: Send clickable link to player
-            sendImageLink(player, imageUrl, prompt, imageModel, aspectRatio, resolution);
+            imageCache.put(ImageCache.key(routedModel, aspectRatio, resolution, prompt), imageHash, imageUrl);
+            sendImageLink(player, imageUrl, prompt, routedModel, aspectRatio, resolution, imageHash);
 
+        } catch (GeminiRetryableException e) {
+            // 503/429: image calls are not retried, so say it failed because the API is busy
+            getLogger().warning("Image generation failed: " + e.getMessage());
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (!player.isOnline()) return;
+                player.sendMessage(ChatColor.RED + "[画像生成] 画像の生成に失敗しました。");
+                player.sendMessage(ChatColor.GRAY + "Gemini APIが混雑しています。しばらく待ってから再度お試しください。");
+            });
         } catch (Exception e) {
             getLogger().severe("Image generation error: " + e.getMessage());
             e.printStackTrace();
@@ -2841,31 +3643,75 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                 if (!player.isOnline()) return;
                 player.sendMessage(ChatColor.RED + "[画像生成] エラーが発生しました: " + e.getMessage());
             });
+        } finally {
+            deleteSpoolFile(imageFile);
         }
     }
 
-    private void processI2IGeneration(Player player, String prompt, String sourceUrl, String imageModel, String aspectRatio, String resolution) {
-        try {
-            // Step 1: Download source image
-            DownloadResult downloadResult;
+    // Exact repeat of an earlier generation: links the stored image again (re-linking it when
+    // its old link has expired, or when image.local-server.public-url has changed) and offers
+    // [新しく生成]. false on a miss or failed upload.
+    private boolean serveCachedImage(Player player, String prompt, String imageModel, String aspectRatio, String resolution) {
+        String cacheKey = ImageCache.key(imageModel, aspectRatio, resolution, prompt);
+        ImageCache.Hit hit = imageCache.get(cacheKey);
+        if (hit == null) return false;
+        String imageUrl = hit.url;
+        if (!isImageUrlAlive(imageUrl, hit.uploadedAt)) {
             try {
-                getLogger().info("I2I: Downloading image from: " + sourceUrl);
-                downloadResult = downloadImageWithMeta(sourceUrl);
-                getLogger().info("I2I: Downloaded " + downloadResult.data.length + " bytes, type: " + downloadResult.contentType);
+                imageUrl = linkImage(null, hit.hash, hit.file);
             } catch (Exception e) {
-                getLogger().warning("I2I: Download failed: " + e.getMessage());
-                Bukkit.getScheduler().runTask(this, () -> {
-                    if (!player.isOnline()) return;
-                    player.sendMessage(ChatColor.RED + "[Image-to-Image] 元画像のダウンロードに失敗しました:");
-                    player.sendMessage(ChatColor.RED + "  " + e.getMessage());
-                    player.sendMessage(ChatColor.GRAY + "URLが正しいか確認してください。対応形式: JPEG, PNG, WebP");
-                    player.sendMessage(ChatColor.GRAY + "ヒント: 画像に直接リンクするURLを使用してください。");
-                });
-                return;
+                imageUrl = null;
+            }
+            if (imageUrl == null || !imageUrl.startsWith("http")) return false;
+            imageCache.updateUrl(cacheKey, imageUrl);
+        }
+        sendImageLink(player, imageUrl, prompt, imageModel, aspectRatio, resolution, hit.hash);
+        Bukkit.getScheduler().runTask(this, () -> {
+            if (!player.isOnline()) return;
+            offerRegeneration(player, null, 1.0, () -> regenerateImage(player, prompt, imageModel, aspectRatio, resolution));
+        });
+        return true;
+    }
+
+    private void regenerateImage(Player player, String prompt, String imageModel, String aspectRatio, String resolution) {
+        imageGenerationCooldown.put(player.getUniqueId(), System.currentTimeMillis());
+        player.sendMessage(ChatColor.LIGHT_PURPLE + "✦ " + ChatColor.GRAY + "画像を生成中...");
+        enqueuePlayerRequest(player, () -> CompletableFuture.runAsync(
+            () -> processImageGeneration(player, prompt, imageModel, aspectRatio, resolution, true), io::execute));
+    }
+
+    private void processI2IGeneration(Player player, String prompt, String sourceUrl, String imageModel, String aspectRatio, String resolution) {
+        Path imageFile = null;
+        try {
+            // Step 1: Source image, read from the local store when it is one of the player's
+            // library images, otherwise downloaded
+            ByteBuffer storedImage = io.call(IoExecutor.Resource.DISK, () -> readLibraryImage(player.getUniqueId(), sourceUrl));
+            ByteBuffer sourceImage;
+            String mimeType;
+            if (storedImage != null) {
+                getLogger().info("I2I: Using stored library image (" + storedImage.remaining() + " bytes)");
+                sourceImage = storedImage;
+                mimeType = detectMimeType(storedImage, null);
+            } else {
+                DownloadResult downloadResult;
+                try {
+                    getLogger().info("I2I: Downloading image from: " + sourceUrl);
+                    downloadResult = io.call(IoExecutor.Resource.HOSTING_UPLOAD, () -> downloadImageWithMeta(sourceUrl));
+                    getLogger().info("I2I: Downloaded " + downloadResult.data.length + " bytes, type: " + downloadResult.contentType);
+                } catch (Exception e) {
+                    getLogger().warning("I2I: Download failed: " + e.getMessage());
+                    Bukkit.getScheduler().runTask(this, () -> {
+                        if (!player.isOnline()) return;
+                        player.sendMessage(ChatColor.RED + "[Image-to-Image] 元画像のダウンロードに失敗しました:");
+                        player.sendMessage(ChatColor.RED + "  " + e.getMessage());
+                        player.sendMessage(ChatColor.GRAY + "URLが正しいか確認してください。対応形式: JPEG, PNG, WebP");
+                        player.sendMessage(ChatColor.GRAY + "ヒント: 画像に直接リンクするURLを使用してください。");
+                    });
+                    return;
+                }
+                sourceImage = ByteBuffer.wrap(downloadResult.data);
+                mimeType = detectMimeType(sourceImage, downloadResult.contentType);
             }
-
-            byte[] sourceImage = downloadResult.data;
-            String mimeType = detectMimeType(sourceUrl, downloadResult.contentType);
             getLogger().info("I2I: Detected MIME type: " + mimeType);
 
             Bukkit.getScheduler().runTask(this, () -> {
@@ -2873,10 +3719,25 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                 player.sendMessage(ChatColor.LIGHT_PURPLE + "✦ " + ChatColor.GRAY + "画像を変換中...");
             });
 
-            // Step 2: Call Gemini API with source image
-            byte[] imageData = callGeminiImageAPI(prompt, imageModel, aspectRatio, resolution, sourceImage, mimeType);
+            // Step 2: Cap the source's long edge at the output's long edge and drop its metadata,
+            // so the inline Base64 is a fraction of a 10 MB download (sent as-is when it cannot
+            // be decoded, e.g. WebP, or when re-encoding would not make it smaller)
+            ModelRoute route = routeModel(player, imageModel, MODEL_NANOBANANA, true);
+            String routedModel = route.model;
+            int maxEdge = i2iSourceMaxEdge(routedModel, aspectRatio, resolution);
+            ImageProcessor.Encoded normalized = imageProcessor.normalizeSource(sourceImage, maxEdge, maxEdge);
+            if (normalized != null) {
+                getLogger().info("I2I: Source normalized to " + normalized.width + "x" + normalized.height + " "
+                    + normalized.mimeType + " (" + sourceImage.remaining() + " -> " + normalized.data.remaining() + " bytes)");
+            }
+            ByteBuffer requestImage = normalized != null ? normalized.data : sourceImage;
+            String requestMimeType = normalized != null ? normalized.mimeType : mimeType;
+
+            // Step 3: Call Gemini API with source image
+            imageFile = admit(AdmissionController.Lane.IMAGE, route, player,
+                () -> callGeminiImageAPI(prompt, routedModel, aspectRatio, resolution, requestImage, requestMimeType));
 
-            if (imageData == null || imageData.length == 0) {
+            if (imageFile == null || Files.size(imageFile) == 0) {
                 Bukkit.getScheduler().runTask(this, () -> {
                     if (!player.isOnline()) return;
                     player.sendMessage(ChatColor.RED + "[Image-to-Image] 画像の変換に失敗しました。");
@@ -2885,13 +3746,9 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                 return;
             }
 
-            // Step 3: Upload
-            Bukkit.getScheduler().runTask(this, () -> {
-                if (!player.isOnline()) return;
-                player.sendMessage(ChatColor.LIGHT_PURPLE + "✦ " + ChatColor.GRAY + "画像をアップロード中...");
-            });
-
-            String imageUrl = uploadImage(imageData);
+            // Step 4: Keep the original, link its preview from the local image server or upload it
+            String imageHash = storeImage(imageFile);
+            String imageUrl = linkImage(player, imageHash, imageFile);
 
             if (imageUrl == null || imageUrl.isEmpty()) {
                 Bukkit.getScheduler().runTask(this, () -> {
@@ -2910,9 +3767,16 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                 return;
             }
 
-            // Step 4: Send link (also saves to library)
-            sendImageLink(player, imageUrl, prompt + " (i2i)", imageModel, aspectRatio, resolution);
+            // Step 5: Send link (also saves to library)
+            sendImageLink(player, imageUrl, prompt + " (i2i)", routedModel, aspectRatio, resolution, imageHash);
 
+        } catch (GeminiRetryableException e) {
+            getLogger().warning("I2I generation failed: " + e.getMessage());
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (!player.isOnline()) return;
+                player.sendMessage(ChatColor.RED + "[Image-to-Image] 画像の変換に失敗しました。");
+                player.sendMessage(ChatColor.GRAY + "Gemini APIが混雑しています。しばらく待ってから再度お試しください。");
+            });
         } catch (Exception e) {
             getLogger().severe("I2I generation error: " + e.getMessage());
             e.printStackTrace();
@@ -2920,6 +3784,8 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                 if (!player.isOnline()) return;
                 player.sendMessage(ChatColor.RED + "[Image-to-Image] エラーが発生しました: " + e.getMessage());
             });
+        } finally {
+            deleteSpoolFile(imageFile);
         }
     }
 
@@ -3010,8 +3876,15 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         throw new Exception("リダイレクトが多すぎます");
     }
 
-    private String detectMimeType(String url, String contentType) {
-        // First try Content-Type header
+    // From the image's first bytes; hosts often serve images under a generic or wrong
+    // Content-Type, and URLs need not have an extension at all
+    private String detectMimeType(ByteBuffer image, String contentType) {
+        ByteBuffer head = image.duplicate();
+        byte[] magic = new byte[Math.min(12, head.remaining())];
+        head.get(magic);
+        String sniffed = LocalImageServer.sniffImageType(magic);
+        if (sniffed != null) return sniffed;
+        // Then the Content-Type header
         if (contentType != null && !contentType.isEmpty()) {
             String ct = contentType.toLowerCase();
             if (ct.contains("image/png")) return "image/png";
@@ -3019,64 +3892,77 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
             if (ct.contains("image/webp")) return "image/webp";
             if (ct.contains("image/gif")) return "image/gif";
         }
-        // Fall back to URL extension
-        String lower = url.toLowerCase();
-        if (lower.contains(".png")) return "image/png";
-        if (lower.contains(".jpg") || lower.contains(".jpeg")) return "image/jpeg";
-        if (lower.contains(".webp")) return "image/webp";
-        if (lower.contains(".gif")) return "image/gif";
-        // Default: check magic bytes would be ideal, but fall back to png
         return "image/png";
     }
 
-    // Image-to-Image: callGeminiImageAPI with source image
-    private byte[] callGeminiImageAPI(String prompt, String modelName, String aspectRatio, String resolution, byte[] sourceImage, String sourceMimeType) {
-        HttpURLConnection connection = null;
+    // Long edge of the Image-to-Image output for the model, resolution (1K on Nanobanana) and
+    // aspect ratio. The model keeps about base x base pixels, so 16:9 at 1K comes out near
+    // 1344x768. The source is capped at this on both axes whatever its own shape, so it is
+    // never scaled below anything the model will produce.
+    private static int i2iSourceMaxEdge(String modelName, String aspectRatio, String resolution) {
+        int base = 1024;
+        if (MODEL_NANOBANANA_PRO.equals(modelName)) {
+            if ("2K".equalsIgnoreCase(resolution)) base = 2048;
+            if ("4K".equalsIgnoreCase(resolution)) base = 4096;
+        }
+        double ratio = 1.0;
+        String[] parts = aspectRatio != null ? aspectRatio.split(":") : new String[0];
+        if (parts.length == 2) {
+            try {
+                ratio = Double.parseDouble(parts[0]) / Double.parseDouble(parts[1]);
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        if (!(ratio > 0) || Double.isInfinite(ratio)) ratio = 1.0;
+        return (int) Math.round(base * Math.sqrt(Math.max(ratio, 1 / ratio)));
+    }
+
+    private Path getSpoolDir() throws java.io.IOException {
+        Path spoolDir = getDataFolder().toPath().resolve("spool");
+        Files.createDirectories(spoolDir);
+        return spoolDir;
+    }
+
+    // Decodes the response's inline image straight into a spool file so a 4K image never
+    // sits on the heap as one large array; null when the response has no image
+    private Path readImageResponse(GeminiHttpClient.Response httpResponse) throws java.io.IOException {
+        Path spool = Files.createTempFile(getSpoolDir(), "image-", ".bin");
+        boolean found = false;
+        try {
+            try (OutputStream imageOut = new java.io.BufferedOutputStream(Files.newOutputStream(spool))) {
+                found = readGeminiResponse(httpResponse, imageOut).hasInlineData;
+            }
+            return found ? spool : null;
+        } finally {
+            if (!found) {
+                Files.deleteIfExists(spool);
+            }
+        }
+    }
+
+    // Moves a generated image from the spool into the image store; its hash, or null if it
+    // could not be stored (the image is still linked, just not kept locally)
+    private String storeImage(Path imageFile) {
+        try {
+            return imageStore.put(imageFile);
+        } catch (java.io.IOException e) {
+            getLogger().warning("Could not store generated image: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void deleteSpoolFile(Path file) {
+        if (file == null) return;
         try {
-            String urlString = String.format(GEMINI_API_URL, modelName, apiKey);
-            URL url = new URL(urlString);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(30000);
-            connection.setReadTimeout(180000);
-
-            JsonObject requestBody = new JsonObject();
-
-            // System instruction for romaji support
-            JsonObject systemInstruction = new JsonObject();
-            JsonArray systemParts = new JsonArray();
-            JsonObject systemText = new JsonObject();
-            systemText.addProperty("text", getImageGenerationSystemPrompt());
-            systemParts.add(systemText);
-            systemInstruction.add("parts", systemParts);
-            requestBody.add("systemInstruction", systemInstruction);
-
-            // Contents with text + inline_data
-            JsonArray contents = new JsonArray();
-            JsonObject userPart = new JsonObject();
-            userPart.addProperty("role", "user");
-            JsonArray userParts = new JsonArray();
-
-            // Text part
-            JsonObject textPart = new JsonObject();
-            textPart.addProperty("text", prompt);
-            userParts.add(textPart);
-
-            // Inline image data part
-            JsonObject imagePart = new JsonObject();
-            JsonObject inlineData = new JsonObject();
-            inlineData.addProperty("mime_type", sourceMimeType);
-            inlineData.addProperty("data", Base64.getEncoder().encodeToString(sourceImage));
-            imagePart.add("inline_data", inlineData);
-            userParts.add(imagePart);
-
-            userPart.add("parts", userParts);
-            contents.add(userPart);
-            requestBody.add("contents", contents);
-
-            // Generation config
+            Files.deleteIfExists(file);
+        } catch (java.io.IOException e) {
+            getLogger().warning("Could not delete spool file " + file + ": " + e.getMessage());
+        }
+    }
+
+    // Generation config with image response modality and imageConfig (aspectRatio, imageSize)
+    private String imageGenerationConfig(String modelName, String aspectRatio, String resolution) {
+        return requestWriter.fragment("image:" + modelName + ":" + aspectRatio + ":" + resolution, () -> {
             JsonObject generationConfig = new JsonObject();
             JsonArray responseModalities = new JsonArray();
             responseModalities.add("TEXT");
@@ -3089,266 +3975,182 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                 imageConfig.addProperty("imageSize", resolution);
             }
             generationConfig.add("imageConfig", imageConfig);
-            requestBody.add("generationConfig", generationConfig);
-
-            // Safety settings
-            JsonArray safetySettings = new JsonArray();
-            String[] categories = {
-                "HARM_CATEGORY_HARASSMENT",
-                "HARM_CATEGORY_HATE_SPEECH",
-                "HARM_CATEGORY_SEXUALLY_EXPLICIT",
-                "HARM_CATEGORY_DANGEROUS_CONTENT"
-            };
-            for (String category : categories) {
-                JsonObject setting = new JsonObject();
-                setting.addProperty("category", category);
-                setting.addProperty("threshold", "BLOCK_MEDIUM_AND_ABOVE");
-                safetySettings.add(setting);
-            }
-            requestBody.add("safetySettings", safetySettings);
+            return generationConfig;
+        });
+    }
 
-            String jsonBody = new Gson().toJson(requestBody);
+    // Image-to-Image: callGeminiImageAPI with source image
+    private Path callGeminiImageAPI(String prompt, String modelName, String aspectRatio, String resolution, ByteBuffer sourceImage, String sourceMimeType) throws GeminiRetryableException {
+        try {
+            String urlString = geminiBaseUrl + String.format(GEMINI_API_URL, modelName);
 
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = jsonBody.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
+            // Text + inline_data (Base64 streamed into the request)
+            GeminiHttpClient.BodyWriter requestBody = buildImageRequestBody(prompt, modelName, aspectRatio, resolution,
+                sourceImage, sourceMimeType);
 
-            int responseCode = connection.getResponseCode();
+            try (GeminiHttpClient.Response httpResponse = geminiHttp.postJson(urlString, requestBody, 180000)) {
+                int responseCode = httpResponse.statusCode();
 
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                StringBuilder response = new StringBuilder();
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    Path imageFile = readImageResponse(httpResponse);
+                    if (imageFile != null) {
+                        return imageFile;
                     }
-                }
 
-                JsonObject jsonResponse = JsonParser.parseString(response.toString()).getAsJsonObject();
-
-                if (jsonResponse.has("candidates")) {
-                    JsonArray candidates = jsonResponse.getAsJsonArray("candidates");
-                    if (candidates.size() > 0) {
-                        JsonObject candidate = candidates.get(0).getAsJsonObject();
-                        if (candidate.has("content")) {
-                            JsonObject content = candidate.getAsJsonObject("content");
-                            if (content.has("parts")) {
-                                JsonArray parts = content.getAsJsonArray("parts");
-                                for (int i = 0; i < parts.size(); i++) {
-                                    JsonObject part = parts.get(i).getAsJsonObject();
-                                    if (part.has("inlineData") || part.has("inline_data")) {
-                                        JsonObject inData = part.has("inlineData")
-                                            ? part.getAsJsonObject("inlineData")
-                                            : part.getAsJsonObject("inline_data");
-                                        if (inData.has("data")) {
-                                            String base64Data = inData.get("data").getAsString();
-                                            return Base64.getDecoder().decode(base64Data);
-                                        }
-                                    }
-                                }
+                    getLogger().warning("No image data in I2I API response");
+                } else {
+                    StringBuilder errorResponse = new StringBuilder();
+                    java.io.InputStream errorStream = httpResponse.body();
+                    if (errorStream != null) {
+                        try (BufferedReader br = new BufferedReader(
+                                new InputStreamReader(errorStream, StandardCharsets.UTF_8))) {
+                            String responseLine;
+                            while ((responseLine = br.readLine()) != null) {
+                                errorResponse.append(responseLine.trim());
                             }
                         }
                     }
-                }
+                    getLogger().severe("Gemini I2I API Error: " + responseCode + " - " + errorResponse.toString());
+                    contextCache.onRequestError(errorResponse.toString());
 
-                getLogger().warning("No image data in I2I API response");
-            } else {
-                StringBuilder errorResponse = new StringBuilder();
-                java.io.InputStream errorStream = connection.getErrorStream();
-                if (errorStream != null) {
-                    try (BufferedReader br = new BufferedReader(
-                            new InputStreamReader(errorStream, StandardCharsets.UTF_8))) {
-                        String responseLine;
-                        while ((responseLine = br.readLine()) != null) {
-                            errorResponse.append(responseLine.trim());
-                        }
+                    // 503/429 tells the adaptive limiter to back off for this model
+                    if (responseCode == 503 || responseCode == 429) {
+                        throw new GeminiRetryableException("API " + responseCode + ": サーバー混雑中",
+                            RetryScheduler.parseRetryAfter(httpResponse.header("Retry-After")));
                     }
                 }
-                getLogger().severe("Gemini I2I API Error: " + responseCode + " - " + errorResponse.toString());
             }
 
+        } catch (GeminiRetryableException e) {
+            throw e;
         } catch (Exception e) {
             getLogger().severe("Error calling Gemini I2I API: " + e.getMessage());
             e.printStackTrace();
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
         }
 
         return null;
     }
 
     // Text-to-Image: original callGeminiImageAPI
-    private byte[] callGeminiImageAPI(String prompt, String modelName, String aspectRatio, String resolution) {
-        HttpURLConnection connection = null;
+    private Path callGeminiImageAPI(String prompt, String modelName, String aspectRatio, String resolution) throws GeminiRetryableException {
         try {
-            String urlString = String.format(GEMINI_API_URL, modelName, apiKey);
-            URL url = new URL(urlString);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(30000);
-            connection.setReadTimeout(180000); // 3 minutes for image generation
-
-            JsonObject requestBody = new JsonObject();
-
-            // System instruction for romaji support
-            JsonObject systemInstruction = new JsonObject();
-            JsonArray systemParts = new JsonArray();
-            JsonObject systemText = new JsonObject();
-            systemText.addProperty("text", getImageGenerationSystemPrompt());
-            systemParts.add(systemText);
-            systemInstruction.add("parts", systemParts);
-            requestBody.add("systemInstruction", systemInstruction);
-
-            // Contents
-            JsonArray contents = new JsonArray();
-            JsonObject userPart = new JsonObject();
-            userPart.addProperty("role", "user");
-            JsonArray userParts = new JsonArray();
-            JsonObject textPart = new JsonObject();
-            textPart.addProperty("text", prompt);
-            userParts.add(textPart);
-            userPart.add("parts", userParts);
-            contents.add(userPart);
-            requestBody.add("contents", contents);
-
-            // Generation config with image response modality and imageConfig
-            JsonObject generationConfig = new JsonObject();
-            JsonArray responseModalities = new JsonArray();
-            responseModalities.add("TEXT");
-            responseModalities.add("IMAGE");
-            generationConfig.add("responseModalities", responseModalities);
-
-            // imageConfig with aspectRatio and imageSize
-            JsonObject imageConfig = new JsonObject();
-            imageConfig.addProperty("aspectRatio", aspectRatio);
-            if (MODEL_NANOBANANA_PRO.equals(modelName)) {
-                imageConfig.addProperty("imageSize", resolution);
-            }
-            generationConfig.add("imageConfig", imageConfig);
-
-            requestBody.add("generationConfig", generationConfig);
-
-            // Safety settings
-            JsonArray safetySettings = new JsonArray();
-            String[] categories = {
-                "HARM_CATEGORY_HARASSMENT",
-                "HARM_CATEGORY_HATE_SPEECH",
-                "HARM_CATEGORY_SEXUALLY_EXPLICIT",
-                "HARM_CATEGORY_DANGEROUS_CONTENT"
-            };
-            for (String category : categories) {
-                JsonObject setting = new JsonObject();
-                setting.addProperty("category", category);
-                setting.addProperty("threshold", "BLOCK_MEDIUM_AND_ABOVE");
-                safetySettings.add(setting);
-            }
-            requestBody.add("safetySettings", safetySettings);
-
-            String jsonBody = new Gson().toJson(requestBody);
+            String urlString = geminiBaseUrl + String.format(GEMINI_API_URL, modelName);
 
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = jsonBody.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
+            GeminiHttpClient.BodyWriter requestBody = buildImageRequestBody(prompt, modelName, aspectRatio, resolution,
+                null, null);
 
-            int responseCode = connection.getResponseCode();
+            try (GeminiHttpClient.Response httpResponse = geminiHttp.postJson(urlString, requestBody, 180000)) {
+                int responseCode = httpResponse.statusCode();
 
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                StringBuilder response = new StringBuilder();
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    Path imageFile = readImageResponse(httpResponse);
+                    if (imageFile != null) {
+                        return imageFile;
                     }
-                }
 
-                JsonObject jsonResponse = JsonParser.parseString(response.toString()).getAsJsonObject();
-
-                if (jsonResponse.has("candidates")) {
-                    JsonArray candidates = jsonResponse.getAsJsonArray("candidates");
-                    if (candidates.size() > 0) {
-                        JsonObject candidate = candidates.get(0).getAsJsonObject();
-                        if (candidate.has("content")) {
-                            JsonObject content = candidate.getAsJsonObject("content");
-                            if (content.has("parts")) {
-                                JsonArray parts = content.getAsJsonArray("parts");
-                                for (int i = 0; i < parts.size(); i++) {
-                                    JsonObject part = parts.get(i).getAsJsonObject();
-                                    if (part.has("inlineData") || part.has("inline_data")) {
-                                        JsonObject inlineData = part.has("inlineData")
-                                            ? part.getAsJsonObject("inlineData")
-                                            : part.getAsJsonObject("inline_data");
-                                        if (inlineData.has("data")) {
-                                            String base64Data = inlineData.get("data").getAsString();
-                                            return Base64.getDecoder().decode(base64Data);
-                                        }
-                                    }
-                                }
+                    getLogger().warning("No image data in API response");
+                } else {
+                    StringBuilder errorResponse = new StringBuilder();
+                    java.io.InputStream errorStream = httpResponse.body();
+                    if (errorStream != null) {
+                        try (BufferedReader br = new BufferedReader(
+                                new InputStreamReader(errorStream, StandardCharsets.UTF_8))) {
+                            String responseLine;
+                            while ((responseLine = br.readLine()) != null) {
+                                errorResponse.append(responseLine.trim());
                             }
                         }
                     }
-                }
+                    getLogger().severe("Gemini Image API Error: " + responseCode + " - " + errorResponse.toString());
+                    contextCache.onRequestError(errorResponse.toString());
 
-                getLogger().warning("No image data in API response");
-            } else {
-                StringBuilder errorResponse = new StringBuilder();
-                java.io.InputStream errorStream = connection.getErrorStream();
-                if (errorStream != null) {
-                    try (BufferedReader br = new BufferedReader(
-                            new InputStreamReader(errorStream, StandardCharsets.UTF_8))) {
-                        String responseLine;
-                        while ((responseLine = br.readLine()) != null) {
-                            errorResponse.append(responseLine.trim());
-                        }
+                    // 503/429 tells the adaptive limiter to back off for this model
+                    if (responseCode == 503 || responseCode == 429) {
+                        throw new GeminiRetryableException("API " + responseCode + ": サーバー混雑中",
+                            RetryScheduler.parseRetryAfter(httpResponse.header("Retry-After")));
                     }
                 }
-                getLogger().severe("Gemini Image API Error: " + responseCode + " - " + errorResponse.toString());
             }
 
+        } catch (GeminiRetryableException e) {
+            throw e;
         } catch (Exception e) {
             getLogger().severe("Error calling Gemini Image API: " + e.getMessage());
             e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    // Blocking: the URL players are sent for a stored image. That is its preview when
+    // image.preview makes one (the original stays in the store for the library and I2I),
+    // served by the local image server when it runs, otherwise uploaded ("uploading" is shown
+    // to player if not null). imageFile is used when the image could not be stored; null
+    // when the upload failed.
+    private String linkImage(Player player, String imageHash, Path imageFile) throws Exception {
+        Path original = imageHash != null ? imageStore.path(imageHash) : null;
+        if (original == null) original = imageFile;
+        if (original == null || !Files.isRegularFile(original)) return null;
+        ImageProcessor.Variant preview = imageProcessor.preview(original, getSpoolDir());
+        try {
+            if (imageHash != null && localImageServer.isRunning()) {
+                // Stored under its own hash; library records keep pointing at the original
+                String previewHash = preview != null ? storeImage(preview.file) : null;
+                return localImageServer.urlFor(previewHash != null ? previewHash : imageHash);
+            }
+            if (player != null) {
+                Bukkit.getScheduler().runTask(this, () -> {
+                    if (!player.isOnline()) return;
+                    player.sendMessage(ChatColor.LIGHT_PURPLE + "✦ " + ChatColor.GRAY + "画像をアップロード中...");
+                });
+            }
+            Path uploadFile = preview != null ? preview.file : original;
+            return io.call(IoExecutor.Resource.HOSTING_UPLOAD, () -> uploadImage(uploadFile));
         } finally {
-            if (connection != null) {
-                connection.disconnect();
+            if (preview != null) {
+                deleteSpoolFile(preview.file);
             }
         }
+    }
 
-        return null;
+    // Blocking: races the hosting services (see HostingUploader); null when all of them failed
+    private String uploadImage(Path imageFile) throws InterruptedException {
+        return hostingUploader.upload(uploadHosts(), imageFile);
     }
 
-    private String uploadImage(byte[] imageData) {
-        if ("imgbb".equalsIgnoreCase(imageHosting) && !imgbbApiKey.equals("YOUR_IMGBB_API_KEY_HERE")) {
-            return uploadToImgBB(imageData);
+    // The configured host first, then the others; litterbox last, as its links expire after 72h
+    private List<HostingUploader.Host> uploadHosts() {
+        List<HostingUploader.Host> hosts = new ArrayList<>();
+        boolean imgbb = !imgbbApiKey.equals("YOUR_IMGBB_API_KEY_HERE");
+        HostingUploader.Host imgbbHost = new HostingUploader.Host("imgbb", this::uploadToImgBB, 1.0);
+        if (imgbb && "imgbb".equalsIgnoreCase(imageHosting)) {
+            hosts.add(imgbbHost);
+        }
+        hosts.add(new HostingUploader.Host("catbox", this::uploadToCatbox, 1.0));
+        if (imgbb && !"imgbb".equalsIgnoreCase(imageHosting)) {
+            hosts.add(imgbbHost);
         }
-        return uploadToCatbox(imageData);
+        hosts.add(new HostingUploader.Host("litterbox", this::uploadToLitterbox, LITTERBOX_SCORE_WEIGHT));
+        return hosts;
     }
 
-    private String uploadToImgBB(byte[] imageData) {
+    private String uploadToImgBB(Path imageFile) {
         HttpURLConnection conn = null;
         try {
-            String base64Image = Base64.getEncoder().encodeToString(imageData);
+            String boundary = "----GeminiNPCBoundary" + System.currentTimeMillis();
             String endpoint = "https://api.imgbb.com/1/upload?key=" + java.net.URLEncoder.encode(imgbbApiKey, "UTF-8");
             URL url = new URL(endpoint);
             conn = (HttpURLConnection) url.openConnection();
             conn.setRequestMethod("POST");
             conn.setDoOutput(true);
-            conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
             conn.setRequestProperty("User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36");
             conn.setConnectTimeout(15000);
             conn.setReadTimeout(30000);
 
-            String body = "image=" + java.net.URLEncoder.encode(base64Image, "UTF-8");
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(body.getBytes(StandardCharsets.UTF_8));
-            }
+            // Raw bytes as a file part: about 3/4 the size of the Base64 form body, with a known length
+            String mimeType = imageFileType(imageFile);
+            writeMultipartUpload(conn, boundary, new byte[0], "image", uploadFileName(mimeType), imageFile, mimeType);
 
             int responseCode = conn.getResponseCode();
             if (responseCode == HttpURLConnection.HTTP_OK) {
@@ -3377,20 +4179,20 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
             }
 
         } catch (Exception e) {
-            getLogger().severe("ImgBB upload failed: " + e.getMessage());
-            e.printStackTrace();
+            // Interrupted: another host already won the race
+            if (!Thread.currentThread().isInterrupted()) {
+                getLogger().severe("ImgBB upload failed: " + e.getMessage());
+            }
         } finally {
             if (conn != null) {
                 conn.disconnect();
             }
         }
 
-        // Fallback to catbox if imgbb fails
-        getLogger().info("Falling back to Catbox for image upload");
-        return uploadToCatbox(imageData);
+        return null;
     }
 
-    private String uploadToCatbox(byte[] imageData) {
+    private String uploadToCatbox(Path imageFile) {
         HttpURLConnection conn = null;
         try {
             String boundary = "----GeminiNPCBoundary" + System.currentTimeMillis();
@@ -3409,13 +4211,11 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
             conn.setRequestProperty("Referer", "https://catbox.moe/");
             conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
 
-            try (OutputStream os = conn.getOutputStream()) {
-                writeMultipartField(os, boundary, "reqtype", "fileupload");
-                writeMultipartField(os, boundary, "userhash", "");
-                writeMultipartFile(os, boundary, "fileToUpload", "generated_image.png", imageData, "image/png");
-                os.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
-                os.flush();
-            }
+            ByteArrayOutputStream fields = new ByteArrayOutputStream();
+            writeMultipartField(fields, boundary, "reqtype", "fileupload");
+            writeMultipartField(fields, boundary, "userhash", "");
+            String mimeType = imageFileType(imageFile);
+            writeMultipartUpload(conn, boundary, fields.toByteArray(), "fileToUpload", uploadFileName(mimeType), imageFile, mimeType);
 
             int responseCode = conn.getResponseCode();
             if (responseCode == HttpURLConnection.HTTP_OK) {
@@ -3444,20 +4244,19 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
             }
 
         } catch (Exception e) {
-            getLogger().severe("Catbox upload failed: " + e.getMessage());
-            e.printStackTrace();
+            if (!Thread.currentThread().isInterrupted()) {
+                getLogger().severe("Catbox upload failed: " + e.getMessage());
+            }
         } finally {
             if (conn != null) {
                 conn.disconnect();
             }
         }
 
-        // フォールバック: Catboxが失敗した場合はLitterbox(一時ファイル)を試行
-        getLogger().warning("Catbox upload failed, trying fallback to Litterbox...");
-        return uploadToLitterbox(imageData);
+        return null;
     }
 
-    private String uploadToLitterbox(byte[] imageData) {
+    private String uploadToLitterbox(Path imageFile) {
         HttpURLConnection conn = null;
         try {
             String boundary = "----GeminiNPCFallback" + System.currentTimeMillis();
@@ -3474,13 +4273,11 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
             conn.setRequestProperty("Referer", "https://litterbox.catbox.moe/");
             conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
 
-            try (OutputStream os = conn.getOutputStream()) {
-                writeMultipartField(os, boundary, "reqtype", "fileupload");
-                writeMultipartField(os, boundary, "time", "72h");
-                writeMultipartFile(os, boundary, "fileToUpload", "generated_image.png", imageData, "image/png");
-                os.write(("--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8));
-                os.flush();
-            }
+            ByteArrayOutputStream fields = new ByteArrayOutputStream();
+            writeMultipartField(fields, boundary, "reqtype", "fileupload");
+            writeMultipartField(fields, boundary, "time", "72h");
+            String mimeType = imageFileType(imageFile);
+            writeMultipartUpload(conn, boundary, fields.toByteArray(), "fileToUpload", uploadFileName(mimeType), imageFile, mimeType);
 
             int responseCode = conn.getResponseCode();
             if (responseCode == HttpURLConnection.HTTP_OK) {
@@ -3492,7 +4289,6 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
                 }
                 String result = resp.toString().trim();
                 if (result.startsWith("https://") || result.startsWith("http://")) {
-                    getLogger().info("Litterbox fallback succeeded: " + result);
                     return result;
                 }
                 getLogger().warning("Litterbox returned unexpected response: " + result);
@@ -3501,7 +4297,9 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
             }
 
         } catch (Exception e) {
-            getLogger().severe("Litterbox fallback failed: " + e.getMessage());
+            if (!Thread.currentThread().isInterrupted()) {
+                getLogger().severe("Litterbox upload failed: " + e.getMessage());
+            }
         } finally {
             if (conn != null) {
                 conn.disconnect();
@@ -3511,33 +4309,78 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         return null;
     }
 
+    // From the file's first bytes (previews are usually JPEG); PNG when unrecognised
+    private static String imageFileType(Path imageFile) throws java.io.IOException {
+        byte[] magic;
+        try (java.io.InputStream in = Files.newInputStream(imageFile)) {
+            magic = in.readNBytes(12);
+        }
+        String mimeType = LocalImageServer.sniffImageType(magic);
+        return mimeType != null ? mimeType : "image/png";
+    }
+
+    // Catbox and Litterbox take the link's extension from the file name
+    private static String uploadFileName(String mimeType) {
+        switch (mimeType) {
+            case "image/jpeg": return "generated_image.jpg";
+            case "image/webp": return "generated_image.webp";
+            case "image/gif": return "generated_image.gif";
+            default: return "generated_image.png";
+        }
+    }
+
     private void writeMultipartField(OutputStream os, String boundary, String name, String value) throws java.io.IOException {
         os.write(("--" + boundary + "\r\n").getBytes(StandardCharsets.UTF_8));
         os.write(("Content-Disposition: form-data; name=\"" + name + "\"\r\n\r\n").getBytes(StandardCharsets.UTF_8));
         os.write((value + "\r\n").getBytes(StandardCharsets.UTF_8));
     }
 
-    private void writeMultipartFile(OutputStream os, String boundary, String fieldName, String fileName, byte[] data, String mimeType) throws java.io.IOException {
+    private void writeMultipartFileHeader(OutputStream os, String boundary, String fieldName, String fileName, String mimeType) throws java.io.IOException {
         os.write(("--" + boundary + "\r\n").getBytes(StandardCharsets.UTF_8));
         os.write(("Content-Disposition: form-data; name=\"" + fieldName + "\"; filename=\"" + fileName + "\"\r\n").getBytes(StandardCharsets.UTF_8));
         os.write(("Content-Type: " + mimeType + "\r\n\r\n").getBytes(StandardCharsets.UTF_8));
-        os.write(data);
-        os.write("\r\n".getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Sends the multipart body with a fixed Content-Length: the small field/header part from
+    // memory, then the image straight from the spool file via FileChannel.transferTo
+    private void writeMultipartUpload(HttpURLConnection conn, String boundary, byte[] fields, String fieldName,
+                                      String fileName, Path file, String mimeType) throws java.io.IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        head.write(fields);
+        writeMultipartFileHeader(head, boundary, fieldName, fileName, mimeType);
+        byte[] tail = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        long size = Files.size(file);
+        conn.setFixedLengthStreamingMode(head.size() + size + tail.length);
+
+        try (OutputStream os = conn.getOutputStream();
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            head.writeTo(os);
+            // Not closed: closing the channel would close the connection's stream
+            java.nio.channels.WritableByteChannel target = Channels.newChannel(os);
+            long position = 0;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, target);
+            }
+            os.write(tail);
+            os.flush();
+        }
     }
 
     // ==================== Library Persistence ====================
 
-    private void addToLibrary(UUID playerId, String prompt, String modelName, String aspectRatio, String resolution, String imageUrl) {
+    private void addToLibrary(UUID playerId, String prompt, String modelName, String aspectRatio, String resolution, String imageUrl,
+                              String imageHash) {
         List<ImageRecord> library = playerImageLibrary.computeIfAbsent(playerId, k -> Collections.synchronizedList(new ArrayList<>()));
-        ImageRecord record = new ImageRecord(prompt, modelName, aspectRatio, resolution, imageUrl, System.currentTimeMillis());
+        ImageRecord record = new ImageRecord(prompt, modelName, aspectRatio, resolution, imageUrl, System.currentTimeMillis(), imageHash);
         library.add(record);
+        indexImage(record);
         // Trim to max size (remove oldest)
         while (library.size() > maxLibrarySize) {
             library.remove(0);
         }
         // Save async
         final List<ImageRecord> snapshot = new ArrayList<>(library);
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> saveLibrary(playerId, snapshot));
+        io.execute(IoExecutor.Resource.DISK, () -> saveLibrary(playerId, snapshot));
     }
 
     private void saveLibrary(UUID playerId, List<ImageRecord> library) {
@@ -3569,6 +4412,84 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         }
     }
 
+    // ==================== Near-duplicate Index Persistence ====================
+
+    private static String imageScope(String modelName, String aspectRatio, String resolution) {
+        return modelName + "|" + aspectRatio + "|" + resolution;
+    }
+
+    // Image-to-Image results depend on their source image, so only text prompts are indexed
+    private void indexImage(ImageRecord record) {
+        if (!similarityEnabled || record.prompt == null || record.prompt.endsWith(" (i2i)")) return;
+        imageIndex.add(imageScope(record.modelName, record.aspectRatio, record.resolution), record.prompt, record);
+    }
+
+    private boolean isImageUrlAlive(ImageRecord record) {
+        return isImageUrlAlive(record.imageUrl, record.timestamp);
+    }
+
+    // Litterbox links (the upload fallback) expire after 72 hours; local links last while the
+    // server runs and the store still has the image
+    private boolean isImageUrlAlive(String imageUrl, long uploadedAt) {
+        if (imageUrl == null) return false;
+        String localHash = localImageServer.hashOf(imageUrl);
+        if (localHash != null) {
+            return localImageServer.isRunning() && imageStore.contains(localHash);
+        }
+        return !imageUrl.contains("litter.catbox.moe")
+            || System.currentTimeMillis() - uploadedAt < 72 * 3600000L;
+    }
+
+    private void rebuildImageIndex() {
+        File[] files = new File(getDataFolder(), "library").listFiles((dir, name) -> name.endsWith(".json"));
+        if (files == null) return;
+        List<ImageRecord> records = new ArrayList<>();
+        for (File file : files) {
+            try {
+                List<ImageRecord> library = loadLibrary(UUID.fromString(file.getName().replace(".json", "")));
+                if (library != null) records.addAll(library);
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        // Oldest first, so the index keeps the most recent prompts when it is full
+        records.sort(java.util.Comparator.comparingLong(r -> r.timestamp));
+        for (ImageRecord record : records) {
+            if (isImageUrlAlive(record)) indexImage(record);
+        }
+        getLogger().info("Similarity index: " + imageIndex.size() + " image prompts");
+    }
+
+    private void saveCommandIndex() {
+        List<SavedCommandResult> saved = new ArrayList<>();
+        for (SimilarityIndex.Match<CommandCache.Result> entry : commandIndex.snapshot()) {
+            saved.add(new SavedCommandResult(entry.scope, entry.text,
+                new ArrayList<>(entry.value.commands), entry.value.explanation));
+        }
+        File file = new File(getDataFolder(), "similar-commands.json");
+        try (FileWriter writer = new FileWriter(file)) {
+            new Gson().toJson(saved, writer);
+        } catch (Exception e) {
+            getLogger().warning("Failed to save command index: " + e.getMessage());
+        }
+    }
+
+    private void loadCommandIndex() {
+        File file = new File(getDataFolder(), "similar-commands.json");
+        if (!file.exists()) return;
+        try (FileReader reader = new FileReader(file)) {
+            Type listType = new TypeToken<ArrayList<SavedCommandResult>>(){}.getType();
+            List<SavedCommandResult> saved = new Gson().fromJson(reader, listType);
+            if (saved == null) return;
+            for (SavedCommandResult entry : saved) {
+                if (entry.model == null || entry.request == null || entry.commands == null || entry.commands.isEmpty()) continue;
+                commandIndex.add(entry.model, entry.request, new CommandCache.Result(entry.commands, entry.explanation));
+            }
+            getLogger().info("Similarity index: " + commandIndex.size() + " command requests");
+        } catch (Exception e) {
+            getLogger().warning("Failed to load command index: " + e.getMessage());
+        }
+    }
+
     private String getRelativeTimeString(long timestamp) {
         long diff = System.currentTimeMillis() - timestamp;
         long seconds = diff / 1000;
@@ -3707,6 +4628,22 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
         player.sendMessage("");
     }
 
+    // The player's library image with this URL, read from the local store; null when it is
+    // not one of their images or is no longer stored
+    private ByteBuffer readLibraryImage(UUID playerId, String imageUrl) throws java.io.IOException {
+        List<ImageRecord> library = playerImageLibrary.get(playerId);
+        if (library == null) return null;
+        String hash = null;
+        synchronized (library) {
+            for (ImageRecord record : library) {
+                if (record.imageHash != null && imageUrl.equals(record.imageUrl)) {
+                    hash = record.imageHash;
+                }
+            }
+        }
+        return hash != null ? imageStore.read(hash) : null;
+    }
+
     private void handleLibraryI2I(Player player, int index) {
         UUID playerId = player.getUniqueId();
         List<ImageRecord> library = playerImageLibrary.get(playerId);
@@ -3740,7 +4677,7 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
     private void logToSpreadsheet(Player player, String mode, String model, String userInput, String aiResponse) {
         if (!spreadsheetEnabled || gasUrl == null || gasUrl.isEmpty()) return;
 
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+        io.execute(IoExecutor.Resource.GAS, () -> {
             try {
                 java.net.URL url = new java.net.URL(gasUrl);
                 java.net.HttpURLConnection conn = (java.net.HttpURLConnection) url.openConnection();
@@ -3814,7 +4751,7 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
 
         final int requestPage = Math.max(1, page);
 
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
+        io.execute(IoExecutor.Resource.GAS, () -> {
             try {
                 // GAS doGet にUUIDパラメータを付けてリクエスト
                 String uuid = player.getUniqueId().toString();
@@ -4047,324 +4984,405 @@ public class GeminiNPC extends JavaPlugin implements Listener, TabCompleter {
 
     // ==================== API Methods ====================
 
-    private WebSearchResult callGeminiAPIWithSearch(JsonArray conversationHistory, String modelName) {
-        try {
-            String actualModel = getActualModelName(modelName);
-            String thinkingLevel = getThinkingLevel(modelName);
-            String urlString = String.format(GEMINI_API_URL, actualModel, apiKey);
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(30000);
-            connection.setReadTimeout(90000);
-
-            JsonObject requestBody = new JsonObject();
-
-            JsonObject systemInstruction = new JsonObject();
-            JsonArray systemParts = new JsonArray();
-            JsonObject systemText = new JsonObject();
-            systemText.addProperty("text", getWebSearchSystemPrompt());
-            systemParts.add(systemText);
-            systemInstruction.add("parts", systemParts);
-            requestBody.add("systemInstruction", systemInstruction);
-
-            requestBody.add("contents", conversationHistory);
-
-            JsonArray tools = new JsonArray();
-            JsonObject googleSearchTool = new JsonObject();
-            googleSearchTool.add("google_search", new JsonObject());
-            tools.add(googleSearchTool);
-            requestBody.add("tools", tools);
+    // The system prompt is sent by reference when a context cache for it is live
+    private GeminiHttpClient.BodyWriter buildSearchRequestBody(JsonArray conversationHistory, String modelName) {
+        String sysJson = requestWriter.systemInstruction(getWebSearchSystemPrompt());
+        return requestWriter.textRequest(sysJson, contextCache.lookup(getActualModelName(modelName), sysJson, true),
+            conversationHistory, textGenerationConfig(modelName), true);
+    }
 
-            JsonObject generationConfig = new JsonObject();
-            generationConfig.addProperty("temperature", 0.7);
-            generationConfig.addProperty("topK", 40);
-            generationConfig.addProperty("topP", 0.95);
-            generationConfig.addProperty("maxOutputTokens", 65536);
-
-            // Add thinking config only for models that support it (Flash Thinking, Pro)
-            if (supportsThinking(modelName)) {
-                JsonObject thinkingConfig = new JsonObject();
-                thinkingConfig.addProperty("thinkingLevel", thinkingLevel);
-                generationConfig.add("thinkingConfig", thinkingConfig);
+    private GeminiHttpClient.BodyWriter buildTextRequestBody(JsonArray conversationHistory, String modelName, String sysPrompt) {
+        String sysJson = requestWriter.systemInstruction(sysPrompt);
+        return requestWriter.textRequest(sysJson, contextCache.lookup(getActualModelName(modelName), sysJson, false),
+            conversationHistory, textGenerationConfig(modelName), false);
+    }
+
+    private GeminiHttpClient.BodyWriter buildImageRequestBody(String prompt, String modelName, String aspectRatio, String resolution,
+                                                              ByteBuffer sourceImage, String sourceMimeType) {
+        String sysJson = requestWriter.systemInstruction(getImageGenerationSystemPrompt());
+        return requestWriter.imageRequest(sysJson, contextCache.lookup(modelName, sysJson, false),
+            prompt, sourceImage, sourceMimeType, imageGenerationConfig(modelName, aspectRatio, resolution));
+    }
+
+    private String textGenerationConfig(String modelName) {
+        return requestWriter.fragment("text:" + modelName, () -> buildTextGenerationConfig(modelName));
+    }
+
+    private JsonObject buildTextGenerationConfig(String modelName) {
+        JsonObject generationConfig = new JsonObject();
+        generationConfig.addProperty("temperature", 0.7);
+        generationConfig.addProperty("topK", 40);
+        generationConfig.addProperty("topP", 0.95);
+        generationConfig.addProperty("maxOutputTokens", 65536);
+
+        // Add thinking config only for models that support it (Flash Thinking, Pro)
+        if (supportsThinking(modelName)) {
+            JsonObject thinkingConfig = new JsonObject();
+            thinkingConfig.addProperty("thinkingLevel", getThinkingLevel(modelName));
+            generationConfig.add("thinkingConfig", thinkingConfig);
+        }
+        return generationConfig;
+    }
+
+    private String readErrorBody(GeminiHttpClient.Response httpResponse) {
+        StringBuilder errorResponse = new StringBuilder();
+        try (BufferedReader br = new BufferedReader(
+                new InputStreamReader(httpResponse.body(), StandardCharsets.UTF_8))) {
+            String responseLine;
+            while ((responseLine = br.readLine()) != null) {
+                errorResponse.append(responseLine.trim());
             }
+        } catch (java.io.IOException ignored) {
+        }
+        return errorResponse.toString();
+    }
 
-            requestBody.add("generationConfig", generationConfig);
-
-            JsonArray safetySettings = new JsonArray();
-            String[] categories = {
-                "HARM_CATEGORY_HARASSMENT",
-                "HARM_CATEGORY_HATE_SPEECH",
-                "HARM_CATEGORY_SEXUALLY_EXPLICIT",
-                "HARM_CATEGORY_DANGEROUS_CONTENT"
-            };
-            for (String category : categories) {
-                JsonObject setting = new JsonObject();
-                setting.addProperty("category", category);
-                setting.addProperty("threshold", "BLOCK_MEDIUM_AND_ABOVE");
-                safetySettings.add(setting);
+    // リトライ: 503/429時はバックオフ付きで再試行、最後の試行はFlashにフォールバック
+    private CompletableFuture<WebSearchResult> callGeminiAPIWithSearchRetry(Player player, JsonArray conversationHistory, String modelName,
+                                                                           java.util.function.Consumer<String> onSegment) {
+        return retryScheduler.submit("Search", io::execute, (attempt, remainingMs) -> {
+            ModelRoute route = routeModel(player, retryModel(modelName, attempt), MODEL_FLASH, attempt == 0);
+            String currentModel = route.model;
+            if (attempt > 0) {
+                getLogger().info("[if-Gemini] Search retry attempt " + attempt + " with: " + currentModel);
+            }
+            long queuedAt = System.currentTimeMillis();
+            WebSearchResult result = admit(AdmissionController.Lane.TEXT, route, player, () -> callGeminiAPIWithSearch(conversationHistory, currentModel,
+                onSegment, Math.min(90000, admittedRemainingMs(remainingMs, queuedAt))));
+            if (result != null) {
+                result.model = currentModel;
             }
-            requestBody.add("safetySettings", safetySettings);
+            return result;
+        });
+    }
 
-            String jsonBody = new Gson().toJson(requestBody);
+    // onSegment != null streams the answer sentence by sentence (when streaming is enabled)
+    private WebSearchResult callGeminiAPIWithSearch(JsonArray conversationHistory, String modelName,
+                                                    java.util.function.Consumer<String> onSegment, long timeoutMs)
+            throws GeminiRetryableException, GeminiStreamCutOffException {
+        try {
+            String actualModel = getActualModelName(modelName);
+            GeminiHttpClient.BodyWriter requestBody = buildSearchRequestBody(conversationHistory, modelName);
 
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = jsonBody.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
+            if (onSegment != null && streamingEnabled) {
+                return callGeminiAPIStream(requestBody, actualModel, timeoutMs, false, onSegment, null);
             }
 
-            int responseCode = connection.getResponseCode();
+            String urlString = geminiBaseUrl + String.format(GEMINI_API_URL, actualModel);
 
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                StringBuilder response = new StringBuilder();
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-                }
+            try (GeminiHttpClient.Response httpResponse = geminiHttp.postJson(urlString, requestBody, timeoutMs)) {
+                int responseCode = httpResponse.statusCode();
 
-                JsonObject jsonResponse = JsonParser.parseString(response.toString()).getAsJsonObject();
-                String text = null;
-                List<String> sources = new ArrayList<>();
-
-                if (jsonResponse.has("candidates")) {
-                    JsonArray candidates = jsonResponse.getAsJsonArray("candidates");
-                    if (candidates.size() > 0) {
-                        JsonObject candidate = candidates.get(0).getAsJsonObject();
-                        if (candidate.has("content")) {
-                            JsonObject content = candidate.getAsJsonObject("content");
-                            if (content.has("parts")) {
-                                JsonArray parts = content.getAsJsonArray("parts");
-                                // Concatenate all text parts (important for thinking mode which may return multiple parts)
-                                StringBuilder textBuilder = new StringBuilder();
-                                for (int i = 0; i < parts.size(); i++) {
-                                    JsonObject part = parts.get(i).getAsJsonObject();
-                                    if (part.has("text")) {
-                                        textBuilder.append(part.get("text").getAsString());
-                                    }
-                                }
-                                if (textBuilder.length() > 0) {
-                                    text = textBuilder.toString();
-                                }
-                            }
-                        }
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    GeminiResponseReader.Result parsed = readGeminiResponse(httpResponse, null);
+                    return new WebSearchResult(parsed.text(), parsed.sources);
 
-                        if (candidate.has("groundingMetadata")) {
-                            JsonObject groundingMetadata = candidate.getAsJsonObject("groundingMetadata");
-                            if (groundingMetadata.has("groundingChunks")) {
-                                JsonArray chunks = groundingMetadata.getAsJsonArray("groundingChunks");
-                                for (int i = 0; i < chunks.size() && i < 5; i++) {
-                                    JsonObject chunk = chunks.get(i).getAsJsonObject();
-                                    if (chunk.has("web")) {
-                                        JsonObject web = chunk.getAsJsonObject("web");
-                                        if (web.has("title")) {
-                                            sources.add(web.get("title").getAsString());
-                                        } else if (web.has("uri")) {
-                                            sources.add(web.get("uri").getAsString());
-                                        }
-                                    }
-                                }
-                            }
-                        }
+                } else {
+                    String error = readErrorBody(httpResponse);
+                    getLogger().severe("Gemini API Error: " + responseCode + " - " + error);
+                    contextCache.onRequestError(error);
+
+                    // 503/429 はリトライ可能（リトライはcallGeminiAPIWithSearchRetryで処理）
+                    if (responseCode == 503 || responseCode == 429) {
+                        throw new GeminiRetryableException("API " + responseCode + ": サーバー混雑中",
+                            RetryScheduler.parseRetryAfter(httpResponse.header("Retry-After")));
                     }
                 }
+            }
+
+        } catch (GeminiRetryableException | GeminiStreamCutOffException e) {
+            throw e;
+        } catch (Exception e) {
+            getLogger().severe("Error calling Gemini API with search: " + e.getMessage());
+            e.printStackTrace();
+        }
 
-                connection.disconnect();
-                return new WebSearchResult(text, sources);
+        return null;
+    }
 
-            } else {
-                StringBuilder errorResponse = new StringBuilder();
-                java.io.InputStream errorStream = connection.getErrorStream();
-                if (errorStream != null) {
-                    try (BufferedReader br = new BufferedReader(
-                            new InputStreamReader(errorStream, StandardCharsets.UTF_8))) {
-                        String responseLine;
-                        while ((responseLine = br.readLine()) != null) {
-                            errorResponse.append(responseLine.trim());
-                        }
-                    }
-                }
-                getLogger().severe("Gemini API Error: " + responseCode + " - " + errorResponse.toString());
+    // Pull-parses a successful response body and records its token usage.
+    // imageSink receives the first inline image (null for text-only calls).
+    private GeminiResponseReader.Result readGeminiResponse(GeminiHttpClient.Response httpResponse, java.io.OutputStream imageSink) throws java.io.IOException {
+        try (java.io.Reader body = new InputStreamReader(httpResponse.body(), StandardCharsets.UTF_8)) {
+            GeminiResponseReader.Result parsed = GeminiResponseReader.read(body, imageSink);
+            recordTokenUsage(parsed, httpResponse.apiKey());
+            return parsed;
+        }
+    }
 
-                // 503/429 はリトライ可能
+    private void recordTokenUsage(GeminiResponseReader.Result parsed, ApiKeyPool.Lease apiKey) {
+        if (parsed == null || !parsed.hasUsage()) return;
+        if (parsed.promptTokens > 0) promptTokensUsed.addAndGet(parsed.promptTokens);
+        if (parsed.cachedTokens > 0) cachedTokensUsed.addAndGet(parsed.cachedTokens);
+        int output = Math.max(0, parsed.totalTokens - Math.max(0, parsed.promptTokens));
+        outputTokensUsed.addAndGet(output);
+        if (apiKey != null) apiKey.addTokens(parsed.totalTokens);
+    }
+
+    // streamGenerateContent (SSE): complete sentences (or lines in lineMode) are passed to
+    // onSegment as soon as they arrive. Returns the full text plus any grounding sources.
+    // With a hedge claim, the first event with text claims the race; a leg that lost returns null unseen.
+    // A stream that breaks after text has arrived is not retried (the player has already seen
+    // part of it): the rest of the received text is passed on and GeminiStreamCutOffException
+    // is thrown, so the caller does not keep the partial answer as a complete one.
+    private WebSearchResult callGeminiAPIStream(GeminiHttpClient.BodyWriter requestBody, String actualModel, long timeoutMs,
+                                                boolean lineMode, java.util.function.Consumer<String> onSegment,
+                                                RequestHedger.Claim claim) throws GeminiRetryableException, GeminiStreamCutOffException {
+        String urlString = geminiBaseUrl + String.format(GEMINI_STREAM_API_URL, actualModel);
+        StringBuilder fullText = new StringBuilder();
+        List<String> sources = new ArrayList<>();
+        SentenceBuffer sentences = new SentenceBuffer(lineMode);
+        // usageMetadata is cumulative; only the last chunk's counts are kept
+        GeminiResponseReader.Result[] lastUsage = new GeminiResponseReader.Result[1];
+        ApiKeyPool.Lease streamKey = null;
+
+        try (GeminiHttpClient.Response httpResponse = geminiHttp.postJson(urlString, requestBody, timeoutMs)) {
+            streamKey = httpResponse.apiKey();
+            int responseCode = httpResponse.statusCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                String error = readErrorBody(httpResponse);
+                getLogger().severe("Gemini API Error: " + responseCode + " - " + error);
+                contextCache.onRequestError(error);
+                // 503 (高負荷) / 429 (レート制限) はリトライ可能（まだ何も表示していない）
                 if (responseCode == 503 || responseCode == 429) {
-                    connection.disconnect();
-                    return null; // リトライはcallGeminiAPIWithSearchRetryで処理
+                    throw new GeminiRetryableException("API " + responseCode + ": サーバー混雑中",
+                        RetryScheduler.parseRetryAfter(httpResponse.header("Retry-After")));
                 }
+                return null;
             }
 
-            connection.disconnect();
-
+            try (BufferedReader br = new BufferedReader(
+                    new InputStreamReader(httpResponse.body(), StandardCharsets.UTF_8))) {
+                StringBuilder event = new StringBuilder();
+                String line;
+                while ((line = br.readLine()) != null) {
+                    if (line.startsWith("data:")) {
+                        event.append(line.substring(5).trim());
+                        continue;
+                    }
+                    if (line.isEmpty() && event.length() > 0) {
+                        if (!handleStreamEvent(event.toString(), fullText, sources, lastUsage, sentences, onSegment, claim)) {
+                            return null;
+                        }
+                        event.setLength(0);
+                    }
+                }
+                if (event.length() > 0
+                        && !handleStreamEvent(event.toString(), fullText, sources, lastUsage, sentences, onSegment, claim)) {
+                    return null;
+                }
+            }
+        } catch (GeminiRetryableException e) {
+            throw e;
         } catch (Exception e) {
-            getLogger().severe("Error calling Gemini API with search: " + e.getMessage());
-            e.printStackTrace();
+            // Aborted because the other hedge leg won
+            if (claim != null && claim.lost()) return null;
+            getLogger().severe("Error streaming Gemini API: " + e.getMessage());
+            if (fullText.length() == 0) {
+                return null;
+            }
+            String rest = sentences.drain();
+            if (!rest.isEmpty()) {
+                onSegment.accept(rest);
+            }
+            throw new GeminiStreamCutOffException("Stream cut off after " + fullText.length() + " chars: " + e.getMessage());
         }
 
-        return null;
+        recordTokenUsage(lastUsage[0], streamKey);
+        String rest = sentences.drain();
+        if (!rest.isEmpty()) {
+            onSegment.accept(rest);
+        }
+        return new WebSearchResult(fullText.length() > 0 ? fullText.toString() : null, sources);
     }
 
-    private String callGeminiAPIInternal(JsonArray conversationHistory, String modelName, String sysPrompt) {
-        // リトライ: 503/429エラー時に最大2回リトライ、最後にFlashフォールバック
-        String[] modelsToTry = {modelName, modelName, MODEL_FLASH};
-        int[] retryDelays = {0, 3000, 1000};
+    // false when this hedge leg lost the race; the first event with text claims it, so an empty
+    // or blocked candidate never cancels the other leg
+    private boolean handleStreamEvent(String data, StringBuilder fullText, List<String> sources, GeminiResponseReader.Result[] lastUsage,
+                                      SentenceBuffer sentences, java.util.function.Consumer<String> onSegment,
+                                      RequestHedger.Claim claim) throws java.io.IOException {
+        GeminiResponseReader.Result chunk = GeminiResponseReader.read(new java.io.StringReader(data), null);
+        if (chunk.hasUsage()) {
+            lastUsage[0] = chunk;
+        }
+        String text = chunk.text();
+        if (text != null) {
+            if (claim != null && !claim.win()) return false;
+            fullText.append(text);
+            for (String segment : sentences.append(text)) {
+                onSegment.accept(segment);
+            }
+        }
+        if (sources.isEmpty()) {
+            sources.addAll(chunk.sources);
+        }
+        return true;
+    }
 
-        for (int attempt = 0; attempt < modelsToTry.length; attempt++) {
-            String currentModel = modelsToTry[attempt];
-            // 最後のフォールバックは元モデルと違う場合のみ
-            if (attempt == 2 && MODEL_FLASH.equals(modelName)) break;
+    private CompletableFuture<String> callGeminiAPIInternal(Player player, JsonArray conversationHistory, String modelName, String sysPrompt,
+                                                            boolean lineMode, java.util.function.Consumer<String> onSegment) {
+        return callGeminiAPIInternal(player, conversationHistory, modelName, sysPrompt, lineMode, onSegment, null);
+    }
 
-            if (retryDelays[attempt] > 0) {
-                try { Thread.sleep(retryDelays[attempt]); } catch (InterruptedException ie) { break; }
+    // onSegment != null streams the response (sentence by sentence, or line by line in lineMode).
+    // answeredBy (optional) receives the model that produced the returned text, which differs
+    // from modelName after a circuit-breaker reroute, the last-attempt fallback or a Flash hedge.
+    // リトライ: 503/429エラー時はバックオフ付きで再試行、最後の試行はFlashにフォールバック
+    private CompletableFuture<String> callGeminiAPIInternal(Player player, JsonArray conversationHistory, String modelName, String sysPrompt,
+                                                            boolean lineMode, java.util.function.Consumer<String> onSegment,
+                                                            java.util.concurrent.atomic.AtomicReference<String> answeredBy) {
+        return retryScheduler.submit("API", io::execute, (attempt, remainingMs) -> {
+            ModelRoute route = routeModel(player, retryModel(modelName, attempt), MODEL_FLASH, attempt == 0);
+            String currentModel = route.model;
+            if (attempt > 0) {
                 getLogger().info("[if-Gemini] Retry attempt " + attempt + " with model: " + currentModel);
             }
+            long queuedAt = System.currentTimeMillis();
+            return requestHedger.call(
+                claim -> admit(AdmissionController.Lane.TEXT, route, player, () ->
+                    callGeminiTextAttempt(conversationHistory, currentModel, sysPrompt, lineMode, onSegment,
+                        Math.min(120000, admittedRemainingMs(remainingMs, queuedAt)), claim, answeredBy)),
+                () -> {
+                    // The hedge gets its own copy: the winner's caller may append to the history
+                    // while the aborted leg is still encoding its request
+                    ModelRoute hedgeRoute = routeModel(player, hedgeOnFlash ? MODEL_FLASH : currentModel, MODEL_FLASH, false);
+                    String hedgeModel = hedgeRoute.model;
+                    JsonArray hedgeHistory = conversationHistory.deepCopy();
+                    getLogger().info("[if-Gemini] Hedging slow " + currentModel + " request with " + hedgeModel);
+                    return claim -> admit(AdmissionController.Lane.TEXT, hedgeRoute, player, () ->
+                        callGeminiTextAttempt(hedgeHistory, hedgeModel, sysPrompt, lineMode, onSegment,
+                            Math.min(120000, admittedRemainingMs(remainingMs, queuedAt)), claim, answeredBy));
+                });
+        });
+    }
 
-            try {
-                String result = callGeminiAPISingle(conversationHistory, currentModel, sysPrompt);
-                if (result != null) return result;
-            } catch (GeminiRetryableException e) {
-                getLogger().warning("[if-Gemini] " + e.getMessage() + " (attempt " + (attempt + 1) + ")");
-                continue;
-            } catch (Exception e) {
-                getLogger().severe("[if-Gemini] API error: " + e.getMessage());
-                break;
-            }
+    // One chat/command request (one leg when hedged); returns null if another leg won
+    private String callGeminiTextAttempt(JsonArray conversationHistory, String modelName, String sysPrompt, boolean lineMode,
+                                         java.util.function.Consumer<String> onSegment, long timeoutMs,
+                                         RequestHedger.Claim claim,
+                                         java.util.concurrent.atomic.AtomicReference<String> answeredBy)
+            throws GeminiRetryableException, GeminiStreamCutOffException {
+        claim.sending(getActualModelName(modelName));
+        String text;
+        if (onSegment != null && streamingEnabled) {
+            GeminiHttpClient.BodyWriter requestBody = buildTextRequestBody(conversationHistory, modelName, sysPrompt);
+            WebSearchResult streamed = callGeminiAPIStream(requestBody, getActualModelName(modelName), timeoutMs, lineMode, onSegment, claim);
+            text = streamed != null ? streamed.text : null;
+        } else {
+            text = callGeminiAPISingle(conversationHistory, modelName, sysPrompt, timeoutMs, claim);
         }
-        return null;
+        if (text != null && answeredBy != null && !claim.lost()) {
+            answeredBy.set(modelName);
+        }
+        return text;
     }
 
-    private static class GeminiRetryableException extends Exception {
-        GeminiRetryableException(String message) { super(message); }
+    // Runs a Gemini call once the admission controller lets it in. Each retry attempt queues
+    // again, so retries cannot jump ahead of other players; a queued player is told their position.
+    private <T> T admit(AdmissionController.Lane lane, ModelRoute route, Player player, IoExecutor.IoCall<T> call) throws Exception {
+        int weight = player.hasPermission("gemininpc.priority") ? admissionPriorityWeight : 1;
+        return admission.call(lane, getActualModelName(route.model), route.permit, player.getUniqueId(), weight, position ->
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (!player.isOnline()) return;
+                player.sendMessage(ChatColor.GRAY + "  (混雑中のため順番待ち: " + position + "番目)");
+            }), call);
     }
 
-    private String callGeminiAPISingle(JsonArray conversationHistory, String modelName, String sysPrompt) throws GeminiRetryableException {
-        try {
-            String actualModel = getActualModelName(modelName);
-            String thinkingLevel = getThinkingLevel(modelName);
-            String urlString = String.format(GEMINI_API_URL, actualModel, apiKey);
-            URL url = new URL(urlString);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(30000);
-            connection.setReadTimeout(120000);
-
-            JsonObject requestBody = new JsonObject();
-
-            JsonObject systemInstruction = new JsonObject();
-            JsonArray systemParts = new JsonArray();
-            JsonObject systemText = new JsonObject();
-            systemText.addProperty("text", sysPrompt);
-            systemParts.add(systemText);
-            systemInstruction.add("parts", systemParts);
-            requestBody.add("systemInstruction", systemInstruction);
-
-            requestBody.add("contents", conversationHistory);
+    // Time spent waiting for admission counts against the request deadline
+    private long admittedRemainingMs(long remainingMs, long queuedAt) {
+        return Math.max(1000, remainingMs - (System.currentTimeMillis() - queuedAt));
+    }
 
-            JsonObject generationConfig = new JsonObject();
-            generationConfig.addProperty("temperature", 0.7);
-            generationConfig.addProperty("topK", 40);
-            generationConfig.addProperty("topP", 0.95);
-            generationConfig.addProperty("maxOutputTokens", 65536);
-
-            if (supportsThinking(modelName)) {
-                JsonObject thinkingConfig = new JsonObject();
-                thinkingConfig.addProperty("thinkingLevel", thinkingLevel);
-                generationConfig.add("thinkingConfig", thinkingConfig);
-            }
+    // The model an attempt goes to, with the breaker permit admit() reports its outcome under
+    private static class ModelRoute {
+        final String model;
+        final CircuitBreaker.Permit permit;
 
-            requestBody.add("generationConfig", generationConfig);
-
-            JsonArray safetySettings = new JsonArray();
-            String[] categories = {
-                "HARM_CATEGORY_HARASSMENT",
-                "HARM_CATEGORY_HATE_SPEECH",
-                "HARM_CATEGORY_SEXUALLY_EXPLICIT",
-                "HARM_CATEGORY_DANGEROUS_CONTENT"
-            };
-            for (String category : categories) {
-                JsonObject setting = new JsonObject();
-                setting.addProperty("category", category);
-                setting.addProperty("threshold", "BLOCK_MEDIUM_AND_ABOVE");
-                safetySettings.add(setting);
-            }
-            requestBody.add("safetySettings", safetySettings);
+        ModelRoute(String model, CircuitBreaker.Permit permit) {
+            this.model = model;
+            this.permit = permit;
+        }
+    }
 
-            String jsonBody = new Gson().toJson(requestBody);
+    // Sends the attempt to the fallback model while the requested model's circuit breaker is
+    // open, so players skip straight past a model that keeps returning 429/503. Must be
+    // followed by an admit() with the returned route (a half-open probe is claimed here).
+    private ModelRoute routeModel(Player player, String modelName, String fallbackModel, boolean notify) {
+        if (getActualModelName(modelName).equals(fallbackModel)) {
+            return new ModelRoute(modelName, null);
+        }
+        CircuitBreaker.Permit permit = circuitBreaker.allow(getActualModelName(modelName));
+        if (permit != null) {
+            return new ModelRoute(modelName, permit);
+        }
+        if (notify) {
+            boolean image = MODEL_NANOBANANA.equals(fallbackModel);
+            String from = image ? getImageModelDisplayName(modelName) : getModelDisplayName(modelName);
+            String to = image ? getImageModelDisplayName(fallbackModel) : getModelDisplayName(fallbackModel);
+            Bukkit.getScheduler().runTask(this, () -> {
+                if (!player.isOnline()) return;
+                player.sendMessage(ChatColor.GRAY + "  (" + from + " が混雑中のため " + to + " で処理します)");
+            });
+        }
+        return new ModelRoute(fallbackModel, null);
+    }
 
-            try (OutputStream os = connection.getOutputStream()) {
-                byte[] input = jsonBody.getBytes(StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
+    // The last attempt falls back to Flash when another model was requested
+    private String retryModel(String modelName, int attempt) {
+        int maxAttempts = retryScheduler.getMaxAttempts();
+        if (maxAttempts > 1 && attempt == maxAttempts - 1) {
+            return MODEL_FLASH;
+        }
+        return modelName;
+    }
 
-            int responseCode = connection.getResponseCode();
+    private static class GeminiRetryableException extends RetryScheduler.RetryableException {
+        GeminiRetryableException(String message, long retryAfterMs) { super(message, retryAfterMs); }
+    }
 
-            if (responseCode == HttpURLConnection.HTTP_OK) {
-                StringBuilder response = new StringBuilder();
-                try (BufferedReader br = new BufferedReader(
-                        new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                    String responseLine;
-                    while ((responseLine = br.readLine()) != null) {
-                        response.append(responseLine.trim());
-                    }
-                }
+    // A streamed answer broke off after part of it was shown; the request fails without a retry
+    private static class GeminiStreamCutOffException extends Exception {
+        GeminiStreamCutOffException(String message) { super(message); }
+    }
 
-                JsonObject jsonResponse = JsonParser.parseString(response.toString()).getAsJsonObject();
-
-                if (jsonResponse.has("candidates")) {
-                    JsonArray candidates = jsonResponse.getAsJsonArray("candidates");
-                    if (candidates.size() > 0) {
-                        JsonObject candidate = candidates.get(0).getAsJsonObject();
-                        if (candidate.has("content")) {
-                            JsonObject content = candidate.getAsJsonObject("content");
-                            if (content.has("parts")) {
-                                JsonArray parts = content.getAsJsonArray("parts");
-                                StringBuilder textBuilder = new StringBuilder();
-                                for (int i = 0; i < parts.size(); i++) {
-                                    JsonObject part = parts.get(i).getAsJsonObject();
-                                    if (part.has("text")) {
-                                        textBuilder.append(part.get("text").getAsString());
-                                    }
-                                }
-                                if (textBuilder.length() > 0) {
-                                    return textBuilder.toString();
-                                }
-                            }
-                        }
+    private String callGeminiAPISingle(JsonArray conversationHistory, String modelName, String sysPrompt, long timeoutMs,
+                                       RequestHedger.Claim claim) throws GeminiRetryableException {
+        try {
+            String actualModel = getActualModelName(modelName);
+            String urlString = geminiBaseUrl + String.format(GEMINI_API_URL, actualModel);
+            GeminiHttpClient.BodyWriter requestBody = buildTextRequestBody(conversationHistory, modelName, sysPrompt);
+
+            try (GeminiHttpClient.Response httpResponse = geminiHttp.postJson(urlString, requestBody, timeoutMs)) {
+                int responseCode = httpResponse.statusCode();
+
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    GeminiResponseReader.Result parsed = readGeminiResponse(httpResponse, null);
+                    String text = parsed.text();
+                    if (text != null) {
+                        // Only a response with text claims the hedge race
+                        if (claim != null && !claim.win()) return null;
+                        return text;
                     }
-                }
 
-                getLogger().warning("Unexpected API response format: " + response.toString());
-            } else {
-                StringBuilder errorResponse = new StringBuilder();
-                java.io.InputStream errorStream = connection.getErrorStream();
-                if (errorStream != null) {
-                    try (BufferedReader br = new BufferedReader(
-                            new InputStreamReader(errorStream, StandardCharsets.UTF_8))) {
-                        String responseLine;
-                        while ((responseLine = br.readLine()) != null) {
-                            errorResponse.append(responseLine.trim());
-                        }
+                    getLogger().warning("Unexpected API response format: no text parts in candidates[0]");
+                } else {
+                    String error = readErrorBody(httpResponse);
+                    getLogger().severe("Gemini API Error: " + responseCode + " - " + error);
+                    contextCache.onRequestError(error);
+
+                    // 503 (高負荷) / 429 (レート制限) はリトライ可能
+                    if (responseCode == 503 || responseCode == 429) {
+                        throw new GeminiRetryableException("API " + responseCode + ": サーバー混雑中",
+                            RetryScheduler.parseRetryAfter(httpResponse.header("Retry-After")));
                     }
                 }
-                getLogger().severe("Gemini API Error: " + responseCode + " - " + errorResponse.toString());
-
-                // 503 (高負荷) / 429 (レート制限) はリトライ可能
-                if (responseCode == 503 || responseCode == 429) {
-                    connection.disconnect();
-                    throw new GeminiRetryableException("API " + responseCode + ": サーバー混雑中");
-                }
             }
 
-            connection.disconnect();
-
         } catch (GeminiRetryableException e) {
             throw e;
         } catch (Exception e) {
+            // Aborted because the other hedge leg won
+            if (claim != null && claim.lost()) return null;
             getLogger().severe("Error calling Gemini API: " + e.getMessage());
             e.printStackTrace();
         }
@@ -0,0 +1,207 @@
+package com.gemininpc.plugin;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+// Encodes Gemini generateContent requests directly into the HTTP request stream with
+// JsonWriter instead of building a JsonObject tree, a String and then a byte[] copy.
+// Parts that never change between calls (safety settings, system instructions, per-model
+// generation configs) are encoded once and spliced in as raw JSON. When the system
+// instruction (and tools) live in a cachedContents entry, the request names the cache instead.
+final class GeminiRequestWriter {
+
+    private static final Gson GSON = new Gson();
+
+    private static final String SAFETY_SETTINGS = GSON.toJson(buildSafetySettings());
+    static final String GOOGLE_SEARCH_TOOLS = "[{\"google_search\":{}}]";
+
+    // Fragments are keyed by their source (prompt text, model, image options); the set of
+    // distinct keys is small, but cap it in case a prompt is generated dynamically
+    private static final int MAX_FRAGMENTS = 64;
+
+    private final Map<String, String> fragments = new ConcurrentHashMap<>();
+
+    // Called on /geminireload since prompts and models may have changed
+    void clearFragments() {
+        fragments.clear();
+    }
+
+    String fragment(String key, Supplier<JsonElement> build) {
+        String cached = fragments.get(key);
+        if (cached != null) return cached;
+        if (fragments.size() >= MAX_FRAGMENTS) {
+            fragments.clear();
+        }
+        return fragments.computeIfAbsent(key, k -> GSON.toJson(build.get()));
+    }
+
+    String systemInstruction(String prompt) {
+        return fragment("system:" + prompt, () -> {
+            JsonObject systemInstruction = new JsonObject();
+            JsonArray systemParts = new JsonArray();
+            JsonObject systemText = new JsonObject();
+            systemText.addProperty("text", prompt);
+            systemParts.add(systemText);
+            systemInstruction.add("parts", systemParts);
+            return systemInstruction;
+        });
+    }
+
+    // Chat / command generation / web search (googleSearch adds the google_search tool).
+    // cachedContent replaces both the system instruction and the tools (the API rejects them
+    // alongside a cache).
+    GeminiHttpClient.BodyWriter textRequest(String systemInstructionJson, String cachedContent, JsonArray contents,
+                                            String generationConfigJson, boolean googleSearch) {
+        return out -> {
+            JsonWriter json = newWriter(out);
+            json.beginObject();
+            if (cachedContent != null) {
+                json.name("cachedContent").value(cachedContent);
+            } else {
+                json.name("systemInstruction").jsonValue(systemInstructionJson);
+            }
+            json.name("contents");
+            GSON.toJson(contents, json);
+            if (googleSearch && cachedContent == null) {
+                json.name("tools").jsonValue(GOOGLE_SEARCH_TOOLS);
+            }
+            json.name("generationConfig").jsonValue(generationConfigJson);
+            json.name("safetySettings").jsonValue(SAFETY_SETTINGS);
+            json.endObject();
+            json.flush();
+        };
+    }
+
+    // Text-to-image, or image-to-image when sourceImage is set. The source image is Base64
+    // encoded straight into the request stream instead of into an intermediate String; a
+    // memory-mapped buffer is read from the page cache and never copied onto the heap whole.
+    GeminiHttpClient.BodyWriter imageRequest(String systemInstructionJson, String cachedContent, String prompt, ByteBuffer sourceImage,
+                                             String sourceMimeType, String generationConfigJson) {
+        return out -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            JsonWriter json = new JsonWriter(writer);
+            json.setHtmlSafe(true);
+            json.beginObject();
+            if (cachedContent != null) {
+                json.name("cachedContent").value(cachedContent);
+            } else {
+                json.name("systemInstruction").jsonValue(systemInstructionJson);
+            }
+            json.name("contents").beginArray().beginObject();
+            json.name("role").value("user");
+            json.name("parts").beginArray();
+            json.beginObject().name("text").value(prompt).endObject();
+            if (sourceImage != null) {
+                json.beginObject().name("inline_data").beginObject();
+                json.name("mime_type").value(sourceMimeType);
+                // JsonWriter has no streaming string value; Base64 needs no escaping, so the
+                // "data" member is written raw between mime_type and the closing brace
+                json.flush();
+                writer.write(",\"data\":\"");
+                writer.flush();
+                // duplicate(): a retried request encodes the same buffer again
+                ByteBuffer source = sourceImage.duplicate();
+                try (WritableByteChannel base64 = Channels.newChannel(Base64.getEncoder().wrap(new NonClosingOutputStream(out)))) {
+                    while (source.hasRemaining()) {
+                        base64.write(source);
+                    }
+                }
+                writer.write('"');
+                json.endObject().endObject();
+            }
+            json.endArray();
+            json.endObject().endArray();
+            json.name("generationConfig").jsonValue(generationConfigJson);
+            json.name("safetySettings").jsonValue(SAFETY_SETTINGS);
+            json.endObject();
+            json.flush();
+        };
+    }
+
+    // POST cachedContents: the system instruction (and tools) for one model, kept for ttlSeconds
+    GeminiHttpClient.BodyWriter cacheRequest(String model, String displayName, String systemInstructionJson,
+                                             boolean googleSearch, long ttlSeconds) {
+        return out -> {
+            JsonWriter json = newWriter(out);
+            json.beginObject();
+            json.name("model").value("models/" + model);
+            json.name("displayName").value(displayName);
+            json.name("systemInstruction").jsonValue(systemInstructionJson);
+            if (googleSearch) {
+                json.name("tools").jsonValue(GOOGLE_SEARCH_TOOLS);
+            }
+            json.name("ttl").value(ttlSeconds + "s");
+            json.endObject();
+            json.flush();
+        };
+    }
+
+    // PATCH cachedContents/{name}?updateMask=ttl
+    GeminiHttpClient.BodyWriter cacheTtlRequest(long ttlSeconds) {
+        return out -> {
+            JsonWriter json = newWriter(out);
+            json.beginObject();
+            json.name("ttl").value(ttlSeconds + "s");
+            json.endObject();
+            json.flush();
+        };
+    }
+
+    private static JsonWriter newWriter(OutputStream out) {
+        JsonWriter json = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        // Match Gson's default output (same escaping as the previous toJson path)
+        json.setHtmlSafe(true);
+        return json;
+    }
+
+    private static JsonArray buildSafetySettings() {
+        JsonArray safetySettings = new JsonArray();
+        String[] categories = {
+            "HARM_CATEGORY_HARASSMENT",
+            "HARM_CATEGORY_HATE_SPEECH",
+            "HARM_CATEGORY_SEXUALLY_EXPLICIT",
+            "HARM_CATEGORY_DANGEROUS_CONTENT"
+        };
+        for (String category : categories) {
+            JsonObject setting = new JsonObject();
+            setting.addProperty("category", category);
+            setting.addProperty("threshold", "BLOCK_MEDIUM_AND_ABOVE");
+            safetySettings.add(setting);
+        }
+        return safetySettings;
+    }
+
+    // Lets the Base64 encoder write its padding on close without closing the request stream
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package com.gemininpc.plugin;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+// Pull parser for generateContent responses (and each SSE chunk of streamGenerateContent).
+// Walks the body once with JsonReader and keeps only what the plugin uses: the text parts and
+// first inline image of candidates[0], up to five grounding source titles, and usageMetadata.
+// Everything else is skipped without building a JsonObject tree. The inline image's Base64
+// never reaches JsonReader: InlineDataTap decodes it from the raw characters into the sink.
+final class GeminiResponseReader {
+
+    private static final int MAX_SOURCES = 5;
+
+    static final class Result {
+        private final StringBuilder text = new StringBuilder();
+        final List<String> sources = new ArrayList<>();
+        boolean hasInlineData;
+        String inlineMimeType;
+        int promptTokens = -1;
+        int candidatesTokens = -1;
+        int thoughtsTokens = -1;
+        int totalTokens = -1;
+        // Part of promptTokens served from a context cache
+        int cachedTokens = -1;
+
+        // null when the response had no text parts
+        String text() {
+            return text.length() > 0 ? text.toString() : null;
+        }
+
+        boolean hasUsage() {
+            return totalTokens >= 0;
+        }
+    }
+
+    private GeminiResponseReader() {
+    }
+
+    // imageSink receives the decoded bytes of the first inlineData part; null skips image data
+    static Result read(Reader body, OutputStream imageSink) throws IOException {
+        Result result = new Result();
+        InlineDataTap imageTap = imageSink != null ? new InlineDataTap(body, imageSink) : null;
+        JsonReader reader = new JsonReader(imageTap != null ? imageTap : body);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "candidates":
+                    readCandidates(reader, result, imageTap);
+                    break;
+                case "usageMetadata":
+                    readUsage(reader, result);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+        return result;
+    }
+
+    private static void readCandidates(JsonReader reader, Result result, InlineDataTap imageTap) throws IOException {
+        if (skipNull(reader)) return;
+        reader.beginArray();
+        boolean first = true;
+        while (reader.hasNext()) {
+            if (first) {
+                readCandidate(reader, result, imageTap);
+                first = false;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+    }
+
+    private static void readCandidate(JsonReader reader, Result result, InlineDataTap imageTap) throws IOException {
+        if (skipNull(reader)) return;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "content":
+                    readContent(reader, result, imageTap);
+                    break;
+                case "groundingMetadata":
+                    readGrounding(reader, result);
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readContent(JsonReader reader, Result result, InlineDataTap imageTap) throws IOException {
+        if (skipNull(reader)) return;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"parts".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            if (skipNull(reader)) continue;
+            reader.beginArray();
+            while (reader.hasNext()) {
+                readPart(reader, result, imageTap);
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+    }
+
+    private static void readPart(JsonReader reader, Result result, InlineDataTap imageTap) throws IOException {
+        if (skipNull(reader)) return;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("text".equals(name) && reader.peek() == JsonToken.STRING) {
+                result.text.append(reader.nextString());
+            } else if ("inlineData".equals(name) || "inline_data".equals(name)) {
+                readInlineData(reader, result, imageTap);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readInlineData(JsonReader reader, Result result, InlineDataTap imageTap) throws IOException {
+        if (skipNull(reader)) return;
+        reader.beginObject();
+        String mimeType = null;
+        boolean decodedHere = false;
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (("mimeType".equals(name) || "mime_type".equals(name)) && reader.peek() == JsonToken.STRING) {
+                mimeType = reader.nextString();
+            } else if ("data".equals(name) && imageTap != null && !result.hasInlineData) {
+                // Already decoded into the sink by the tap; JsonReader only sees ""
+                reader.skipValue();
+                decodedHere = imageTap.diverted();
+                result.hasInlineData = decodedHere;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        // mimeType may come before or after data
+        if (mimeType != null && (decodedHere || !result.hasInlineData && result.inlineMimeType == null)) {
+            result.inlineMimeType = mimeType;
+        }
+    }
+
+    private static void readGrounding(JsonReader reader, Result result) throws IOException {
+        if (skipNull(reader)) return;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"groundingChunks".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            if (skipNull(reader)) continue;
+            reader.beginArray();
+            int index = 0;
+            while (reader.hasNext()) {
+                if (index++ < MAX_SOURCES && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    readGroundingChunk(reader, result);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+    }
+
+    private static void readGroundingChunk(JsonReader reader, Result result) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"web".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            if (skipNull(reader)) continue;
+            String title = null;
+            String uri = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("title".equals(name) && reader.peek() == JsonToken.STRING) {
+                    title = reader.nextString();
+                } else if ("uri".equals(name) && reader.peek() == JsonToken.STRING) {
+                    uri = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (title != null) {
+                result.sources.add(title);
+            } else if (uri != null) {
+                result.sources.add(uri);
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readUsage(JsonReader reader, Result result) throws IOException {
+        if (skipNull(reader)) return;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() != JsonToken.NUMBER) {
+                reader.skipValue();
+                continue;
+            }
+            switch (name) {
+                case "promptTokenCount":
+                    result.promptTokens = reader.nextInt();
+                    break;
+                case "candidatesTokenCount":
+                    result.candidatesTokens = reader.nextInt();
+                    break;
+                case "thoughtsTokenCount":
+                    result.thoughtsTokens = reader.nextInt();
+                    break;
+                case "totalTokenCount":
+                    result.totalTokens = reader.nextInt();
+                    break;
+                case "cachedContentTokenCount":
+                    result.cachedTokens = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    private static boolean skipNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return true;
+        }
+        return false;
+    }
+
+    // Sits between the response body and JsonReader. The first inlineData.data string is taken
+    // out of the character stream as it passes and Base64-decoded into the sink one small chunk
+    // at a time; JsonReader is handed "" in its place. A 10-30 MB image therefore never exists
+    // as a String or char[] and the heap stays flat. Only enough of the JSON is tracked to find
+    // that value: string state, the last (short) string before a ':', and the key that opened
+    // each enclosing object.
+    private static final class InlineDataTap extends Reader {
+        private static final int MAX_KEY_LENGTH = 32;
+
+        private final Reader in;
+        private final OutputStream sink;
+        private final char[] buffer = new char[8192];
+        private int pos;
+        private int limit;
+        // Key of each enclosing object (null for an object inside an array)
+        private final List<String> objectKeys = new ArrayList<>();
+        private final StringBuilder string = new StringBuilder();
+        private boolean inString;
+        private boolean escaped;
+        private boolean stringTooLong;
+        private String lastString;
+        // The key just before ':' while its value has not started yet
+        private String key;
+        private boolean diverting;
+        private boolean divertEscaped;
+        private boolean diverted;
+        // 4096 Base64 characters decode to exactly 3072 bytes
+        private final byte[] base64 = new byte[4096];
+        private int base64Length;
+        private final byte[] decoded = new byte[3072];
+
+        InlineDataTap(Reader in, OutputStream sink) {
+            this.in = in;
+            this.sink = sink;
+        }
+
+        // true once an inline image has been decoded into the sink
+        boolean diverted() {
+            return diverted;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int n = 0;
+            while (n < len) {
+                if (pos == limit) {
+                    // Hand over what we have rather than block for more
+                    if (n > 0) return n;
+                    limit = in.read(buffer, 0, buffer.length);
+                    pos = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        return -1;
+                    }
+                }
+                char c = buffer[pos++];
+                if (diverting) {
+                    divert(c);
+                    if (!diverting) cbuf[off + n++] = '"';
+                    continue;
+                }
+                track(c);
+                cbuf[off + n++] = c;
+            }
+            return n;
+        }
+
+        private void track(char c) {
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                    appendKeyChar(c);
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                    lastString = stringTooLong ? null : string.toString();
+                } else {
+                    appendKeyChar(c);
+                }
+                return;
+            }
+            switch (c) {
+                case '"':
+                    if (!diverted && "data".equals(key) && !objectKeys.isEmpty()) {
+                        String owner = objectKeys.get(objectKeys.size() - 1);
+                        if ("inlineData".equals(owner) || "inline_data".equals(owner)) {
+                            diverting = true;
+                            key = null;
+                            return;
+                        }
+                    }
+                    inString = true;
+                    string.setLength(0);
+                    stringTooLong = false;
+                    key = null;
+                    break;
+                case ':':
+                    key = lastString;
+                    break;
+                case '{':
+                    objectKeys.add(key);
+                    key = null;
+                    break;
+                case '}':
+                    if (!objectKeys.isEmpty()) objectKeys.remove(objectKeys.size() - 1);
+                    key = null;
+                    break;
+                case ' ':
+                case '\t':
+                case '\r':
+                case '\n':
+                    break;
+                default:
+                    key = null;
+                    break;
+            }
+        }
+
+        private void appendKeyChar(char c) {
+            if (string.length() < MAX_KEY_LENGTH) {
+                string.append(c);
+            } else {
+                stringTooLong = true;
+            }
+        }
+
+        private void divert(char c) throws IOException {
+            if (divertEscaped) {
+                // Only "\/" can stand for a Base64 character; other escapes are line breaks
+                divertEscaped = false;
+                if (c == '/') addBase64((byte) c);
+                return;
+            }
+            if (c == '\\') {
+                divertEscaped = true;
+            } else if (c == '"') {
+                flushBase64();
+                diverting = false;
+                diverted = true;
+            } else if (c >= 'A' && c <= 'Z' || c >= 'a' && c <= 'z' || c >= '0' && c <= '9'
+                    || c == '+' || c == '/' || c == '=') {
+                addBase64((byte) c);
+            }
+        }
+
+        private void addBase64(byte b) throws IOException {
+            base64[base64Length++] = b;
+            if (base64Length == base64.length) {
+                flushBase64();
+            }
+        }
+
+        private void flushBase64() throws IOException {
+            if (base64Length == 0) return;
+            try {
+                int n = base64Length == base64.length
+                    ? Base64.getDecoder().decode(base64, decoded)
+                    : Base64.getDecoder().decode(Arrays.copyOf(base64, base64Length), decoded);
+                sink.write(decoded, 0, n);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid inline image data: " + e.getMessage(), e);
+            }
+            base64Length = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.gemininpc.plugin;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Uploads an image to whichever hosting service answers first. Hosts are ranked by a
+// rolling score: success rate over their last attempts divided by their median upload time,
+// times a weight (litterbox links expire, so it is weighted down). The best host starts
+// first; when the newest upload runs past that host's p90 upload time (defaultHedgeMs until
+// it has enough history) the next-best host starts alongside it, and a failed upload
+// starts the next one at once. The first valid URL wins and the uploads still running are
+// cancelled by interrupting their threads, which closes their sockets.
+final class HostingUploader {
+
+    interface Upload {
+        // A URL, or null when the host refused the image
+        String upload(Path file) throws Exception;
+    }
+
+    static final class Host {
+        final String name;
+        final Upload upload;
+        final double weight;
+
+        Host(String name, Upload upload, double weight) {
+            this.name = name;
+            this.upload = upload;
+            this.weight = weight;
+        }
+    }
+
+    // Snapshot for /gemini status
+    static final class Stats {
+        final String name;
+        final int successPercent;
+        final long p50Ms;
+        final long p90Ms;
+        final long attempts;
+        final long cancelled;
+        final double score;
+
+        private Stats(String name, int successPercent, long p50Ms, long p90Ms, long attempts, long cancelled, double score) {
+            this.name = name;
+            this.successPercent = successPercent;
+            this.p50Ms = p50Ms;
+            this.p90Ms = p90Ms;
+            this.attempts = attempts;
+            this.cancelled = cancelled;
+            this.score = score;
+        }
+    }
+
+    private static final class Health {
+        // Upload times of successful uploads
+        final LatencyTracker latency = new LatencyTracker(WINDOW);
+        // Outcomes of the last WINDOW finished (not cancelled) uploads
+        final ArrayDeque<Boolean> outcomes = new ArrayDeque<>();
+        long attempts;
+        long cancelled;
+
+        synchronized void record(boolean success) {
+            attempts++;
+            outcomes.addLast(success);
+            if (outcomes.size() > WINDOW) outcomes.removeFirst();
+        }
+
+        synchronized void recordCancelled() {
+            attempts++;
+            cancelled++;
+        }
+
+        // With one success and one failure assumed, so a host with no history sits at 50%
+        synchronized double successRate() {
+            int successes = 0;
+            for (boolean outcome : outcomes) {
+                if (outcome) successes++;
+            }
+            return (successes + 1.0) / (outcomes.size() + 2.0);
+        }
+    }
+
+    private static final class Leg {
+        final Host host;
+        // Started because the one before it was slow, not because it failed
+        final boolean hedge;
+        final long startedAt = System.currentTimeMillis();
+        final AtomicReference<Thread> thread = new AtomicReference<>();
+        volatile boolean cancelled;
+        volatile String url;
+
+        Leg(Host host, boolean hedge) {
+            this.host = host;
+            this.hedge = hedge;
+        }
+
+        void cancel() {
+            cancelled = true;
+            Thread t = thread.get();
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+    }
+
+    private static final int WINDOW = 50;
+    // Percentiles need some history before they mean anything
+    private static final int MIN_SAMPLES = 5;
+
+    private final Executor executor;
+    private final Map<String, Health> health = new ConcurrentHashMap<>();
+    private final AtomicLong uploads = new AtomicLong();
+    private final AtomicLong hedgesFired = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    private volatile boolean hedging = true;
+    private volatile double percentile = 90;
+    private volatile long defaultHedgeMs = 15000;
+    private volatile long minHedgeMs = 3000;
+
+    HostingUploader(Executor executor) {
+        this.executor = executor;
+    }
+
+    void configure(boolean hedging, double percentile, long defaultHedgeMs, long minHedgeMs) {
+        this.hedging = hedging;
+        this.percentile = Math.max(50, Math.min(99, percentile));
+        this.defaultHedgeMs = Math.max(0, defaultHedgeMs);
+        this.minHedgeMs = Math.max(0, minHedgeMs);
+    }
+
+    // Blocking. hosts in preference order (used while scores tie); null when every host failed.
+    String upload(List<Host> hosts, Path file) throws InterruptedException {
+        uploads.incrementAndGet();
+        List<Host> ranked = rank(hosts);
+        BlockingQueue<Leg> finished = new LinkedBlockingQueue<>();
+        List<Leg> running = new ArrayList<>();
+        int next = 0;
+        try {
+            while (true) {
+                if (running.isEmpty()) {
+                    if (next >= ranked.size()) return null;
+                    running.add(start(ranked.get(next++), file, finished, false));
+                }
+                Leg newest = running.get(running.size() - 1);
+                Leg done;
+                if (hedging && next < ranked.size()) {
+                    long wait = hedgeDelay(newest.host) - (System.currentTimeMillis() - newest.startedAt);
+                    done = finished.poll(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        hedgesFired.incrementAndGet();
+                        running.add(start(ranked.get(next++), file, finished, true));
+                        continue;
+                    }
+                } else {
+                    done = finished.take();
+                }
+                running.remove(done);
+                if (isValid(done.url)) {
+                    if (done.hedge) hedgeWins.incrementAndGet();
+                    return done.url;
+                }
+                // Failed: the next host starts now instead of after a hedge delay
+                if (next < ranked.size()) {
+                    running.add(start(ranked.get(next++), file, finished, false));
+                }
+            }
+        } finally {
+            for (Leg leg : running) {
+                leg.cancel();
+            }
+        }
+    }
+
+    private Leg start(Host host, Path file, BlockingQueue<Leg> finished, boolean hedge) {
+        Leg leg = new Leg(host, hedge);
+        executor.execute(() -> {
+            leg.thread.set(Thread.currentThread());
+            if (leg.cancelled) Thread.currentThread().interrupt();
+            try {
+                leg.url = host.upload.upload(file);
+            } catch (Exception e) {
+                leg.url = null;
+            } finally {
+                leg.thread.set(null);
+                Health h = healthFor(host.name);
+                if (isValid(leg.url)) {
+                    h.record(true);
+                    h.latency.record(System.currentTimeMillis() - leg.startedAt);
+                } else if (leg.cancelled) {
+                    h.recordCancelled();
+                } else {
+                    h.record(false);
+                }
+                finished.add(leg);
+            }
+        });
+        return leg;
+    }
+
+    private static boolean isValid(String url) {
+        return url != null && (url.startsWith("https://") || url.startsWith("http://"));
+    }
+
+    private long hedgeDelay(Host host) {
+        LatencyTracker latency = healthFor(host.name).latency;
+        if (latency.windowSize() < MIN_SAMPLES) return defaultHedgeMs;
+        return Math.max(minHedgeMs, latency.percentile(percentile));
+    }
+
+    private List<Host> rank(List<Host> hosts) {
+        List<Host> ranked = new ArrayList<>(hosts);
+        // Stable: hosts with equal scores keep the preference order
+        ranked.sort(Comparator.comparingDouble((Host host) -> score(host)).reversed());
+        return ranked;
+    }
+
+    private double score(Host host) {
+        Health h = healthFor(host.name);
+        long median = h.latency.windowSize() < MIN_SAMPLES ? defaultHedgeMs : h.latency.percentile(50);
+        return host.weight * h.successRate() / Math.max(1000, median) * 1000;
+    }
+
+    private Health healthFor(String name) {
+        return health.computeIfAbsent(name, k -> new Health());
+    }
+
+    List<Stats> snapshot(List<Host> hosts) {
+        List<Stats> stats = new ArrayList<>();
+        for (Host host : rank(hosts)) {
+            Health h = healthFor(host.name);
+            long attempts;
+            long cancelled;
+            synchronized (h) {
+                attempts = h.attempts;
+                cancelled = h.cancelled;
+            }
+            stats.add(new Stats(host.name, (int) Math.round(h.successRate() * 100), h.latency.percentile(50),
+                h.latency.percentile(percentile), attempts, cancelled, score(host)));
+        }
+        return stats;
+    }
+
+    boolean isHedging() {
+        return hedging;
+    }
+
+    long getUploads() {
+        return uploads.get();
+    }
+
+    long getHedgesFired() {
+        return hedgesFired.get();
+    }
+
+    long getHedgeWins() {
+        return hedgeWins.get();
+    }
+}
@@ -0,0 +1,184 @@
+package com.gemininpc.plugin;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+// Generated-image results by model + aspect ratio + resolution + prompt (as folded by
+// RequestNormalizer). Each key maps to the image's hash in the ImageStore, so the same
+// picture reached through several keys is stored once, together with the hosting URL it
+// was last uploaded to; a hit whose URL has expired can be re-uploaded without calling the
+// model. Disk usage is bounded by the store's eviction: a key whose image was evicted is a
+// miss and is dropped. The index is saved to index.json.
+final class ImageCache {
+
+    static final class Hit {
+        final String hash;
+        final Path file;
+        final String url;
+        final long uploadedAt;
+
+        Hit(String hash, Path file, String url, long uploadedAt) {
+            this.hash = hash;
+            this.file = file;
+            this.url = url;
+            this.uploadedAt = uploadedAt;
+        }
+    }
+
+    // As persisted
+    private static final class Entry {
+        String key;
+        String hash;
+        String url;
+        long uploadedAt;
+    }
+
+    private final Logger logger;
+    private final Path dir;
+    private final ImageStore store;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean enabled = true;
+    private boolean dirty;
+    private long hits;
+    private long misses;
+
+    ImageCache(Logger logger, Path dir, ImageStore store) {
+        this.logger = logger;
+        this.dir = dir;
+        this.store = store;
+    }
+
+    synchronized void configure(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled && !entries.isEmpty()) {
+            entries.clear();
+            dirty = true;
+        }
+    }
+
+    static String key(String model, String aspectRatio, String resolution, String prompt) {
+        return model + "|" + aspectRatio + "|" + resolution + "\n" + RequestNormalizer.normalize(prompt);
+    }
+
+    // null on a miss, when disabled, or when the image is no longer in the store
+    synchronized Hit get(String key) {
+        if (!enabled) return null;
+        Entry entry = entries.get(key);
+        Path file = entry != null ? store.path(entry.hash) : null;
+        if (entry != null && file == null) {
+            entries.remove(key);
+            dirty = true;
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new Hit(entry.hash, file, entry.url, entry.uploadedAt);
+    }
+
+    // Maps key to an image already in the store
+    synchronized void put(String key, String hash, String url) {
+        if (!enabled || hash == null) return;
+        Entry entry = new Entry();
+        entry.key = key;
+        entry.hash = hash;
+        entry.url = url;
+        entry.uploadedAt = System.currentTimeMillis();
+        entries.put(key, entry);
+        dirty = true;
+    }
+
+    // After a hit was re-uploaded because its old URL had expired
+    synchronized void updateUrl(String key, String url) {
+        Entry entry = entries.get(key);
+        if (entry == null) return;
+        entry.url = url;
+        entry.uploadedAt = System.currentTimeMillis();
+        dirty = true;
+    }
+
+    // Returns how many keys were dropped; the images stay in the store
+    synchronized int invalidateAll() {
+        int size = entries.size();
+        entries.clear();
+        dirty = true;
+        return size;
+    }
+
+    // Blocking, after the store has loaded: reads index.json, dropping keys whose image is gone
+    synchronized void load() {
+        Path index = dir.resolve("index.json");
+        if (!enabled || !Files.isRegularFile(index)) return;
+        try (Reader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+            Type listType = new TypeToken<ArrayList<Entry>>(){}.getType();
+            List<Entry> saved = new Gson().fromJson(reader, listType);
+            if (saved == null) return;
+            for (Entry entry : saved) {
+                if (entry.key == null || !store.contains(entry.hash)) continue;
+                entries.putIfAbsent(entry.key, entry);
+            }
+        } catch (Exception e) {
+            logger.warning("Failed to load image cache index: " + e.getMessage());
+        }
+    }
+
+    // Blocking: writes index.json when something changed since the last save, leaving out
+    // keys whose image the store has evicted since
+    void save() {
+        List<Entry> snapshot;
+        synchronized (this) {
+            entries.values().removeIf(entry -> {
+                boolean gone = !store.contains(entry.hash);
+                dirty |= gone;
+                return gone;
+            });
+            if (!dirty) return;
+            dirty = false;
+            snapshot = new ArrayList<>(entries.values());
+        }
+        try {
+            Files.createDirectories(dir);
+            Path tmp = dir.resolve("index.json.tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                new Gson().toJson(snapshot, writer);
+            }
+            Files.move(tmp, dir.resolve("index.json"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            logger.warning("Failed to save image cache index: " + e.getMessage());
+        }
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,409 @@
+package com.gemininpc.plugin;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+// Decodes, downscales and re-encodes images on a few low-priority platform threads of its
+// own. This is CPU-bound work (a 4K PNG is ~64 MB of pixels), so it is kept off the main
+// thread and off the virtual threads, where it would pin the carriers that uploads and
+// Gemini calls run on. When every thread is busy and the queue is full the caller goes
+// without and the original image is used. preview() makes the copy that players are sent:
+// at most maxEdge pixels on the long side, as JPEG at the configured quality or as PNG.
+// normalizeSource() fits an Image-to-Image source to what the model can use before it is
+// inlined into the request. The JDK's ImageIO reads and writes neither WebP nor anything
+// else outside PNG/JPEG/GIF/BMP, so WebP is not offered and WebP sources are sent as-is.
+final class ImageProcessor {
+
+    static final class Variant {
+        final Path file;
+        final String mimeType;
+        final int width;
+        final int height;
+
+        Variant(Path file, String mimeType, int width, int height) {
+            this.file = file;
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    // An image re-encoded in memory
+    static final class Encoded {
+        final ByteBuffer data;
+        final String mimeType;
+        final int width;
+        final int height;
+
+        Encoded(ByteBuffer data, String mimeType, int width, int height) {
+            this.data = data;
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    // Jobs waiting for a thread; beyond this the original is used instead
+    private static final int MAX_QUEUED = 32;
+
+    private final Logger logger;
+    private ThreadPoolExecutor pool;
+    private volatile boolean enabled = true;
+    private volatile String format = "jpeg";
+    private volatile float quality = 0.85f;
+    private volatile int maxEdge = 1600;
+    private volatile boolean sourceEnabled = true;
+    private volatile float sourceQuality = 0.9f;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong sourcesNormalized = new AtomicLong();
+    private final AtomicLong sourceBytesIn = new AtomicLong();
+    private final AtomicLong sourceBytesOut = new AtomicLong();
+
+    ImageProcessor(Logger logger) {
+        this.logger = logger;
+    }
+
+    // format "png" or "jpeg" (anything else is JPEG); threads are resized in place
+    synchronized void configure(boolean enabled, String format, int qualityPercent, int maxEdge, int threads) {
+        this.enabled = enabled;
+        this.format = "png".equalsIgnoreCase(format) ? "png" : "jpeg";
+        if (!"png".equalsIgnoreCase(format) && !"jpeg".equalsIgnoreCase(format) && !"jpg".equalsIgnoreCase(format)) {
+            logger.warning("image.preview.format '" + format + "' is not supported; using jpeg");
+        }
+        this.quality = Math.max(1, Math.min(100, qualityPercent)) / 100f;
+        this.maxEdge = Math.max(64, maxEdge);
+        int size = Math.max(1, threads);
+        if (pool == null) {
+            AtomicInteger count = new AtomicInteger();
+            pool = new ThreadPoolExecutor(size, size, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(MAX_QUEUED), r -> {
+                Thread t = new Thread(r, "if-Gemini-image-" + count.getAndIncrement());
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy());
+            pool.allowCoreThreadTimeOut(true);
+        } else if (size > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(size);
+            pool.setCorePoolSize(size);
+        } else {
+            pool.setCorePoolSize(size);
+            pool.setMaximumPoolSize(size);
+        }
+    }
+
+    // Image-to-Image sources (image.i2i-source)
+    void configureSource(boolean enabled, int qualityPercent) {
+        this.sourceEnabled = enabled;
+        this.sourceQuality = Math.max(1, Math.min(100, qualityPercent)) / 100f;
+    }
+
+    // Blocking (parks a virtual thread while the pool works): the preview written to a new
+    // file in dir, or null when disabled, when the pool is saturated, when the image cannot
+    // be decoded, or when the preview would be no smaller than the original
+    Variant preview(Path image, Path dir) throws InterruptedException {
+        if (!enabled) return null;
+        Future<Variant> task;
+        try {
+            task = pool().submit(() -> encodePreview(image, dir));
+        } catch (RejectedExecutionException e) {
+            skipped.incrementAndGet();
+            return null;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            skipped.incrementAndGet();
+            logger.warning("Could not make image preview: " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    // Blocking: image decoded, scaled to fit maxWidth x maxHeight (never up) and re-encoded
+    // without metadata, as PNG when it has transparency and as JPEG otherwise. null when
+    // disabled, when the pool is saturated, when ImageIO cannot decode it (WebP) or when it
+    // needed no downscaling and re-encoding would not make it smaller (a small JPEG, a
+    // paletted PNG); the caller then sends the original.
+    Encoded normalizeSource(ByteBuffer image, int maxWidth, int maxHeight) throws InterruptedException {
+        if (!sourceEnabled) return null;
+        Future<Encoded> task;
+        try {
+            task = pool().submit(() -> encodeSource(image, maxWidth, maxHeight));
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            logger.warning("Could not normalize source image: " + e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    private Encoded encodeSource(ByteBuffer image, int maxWidth, int maxHeight) throws IOException {
+        int[] size;
+        try (ImageInputStream in = new MemoryCacheImageInputStream(asStream(image))) {
+            size = readSize(in);
+        }
+        if (size == null) return null;
+        BufferedImage scaled;
+        try (ImageInputStream in = new MemoryCacheImageInputStream(asStream(image))) {
+            scaled = readScaled(in, maxWidth, maxHeight, true);
+        }
+        if (scaled == null) return null;
+        boolean downscaled = scaled.getWidth() < size[0] || scaled.getHeight() < size[1];
+        boolean alpha = scaled.getColorModel().hasAlpha();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(32, image.remaining() / 4));
+        write(scaled, alpha ? "png" : "jpeg", sourceQuality, out);
+        if (!downscaled && out.size() >= image.remaining()) {
+            return null;
+        }
+        sourcesNormalized.incrementAndGet();
+        sourceBytesIn.addAndGet(image.remaining());
+        sourceBytesOut.addAndGet(out.size());
+        return new Encoded(ByteBuffer.wrap(out.toByteArray()), alpha ? "image/png" : "image/jpeg",
+            scaled.getWidth(), scaled.getHeight());
+    }
+
+    // Reads buffer from its position without moving it (it may be a mapped store file)
+    private static InputStream asStream(ByteBuffer buffer) {
+        ByteBuffer source = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return source.hasRemaining() ? source.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (!source.hasRemaining()) return -1;
+                int n = Math.min(len, source.remaining());
+                source.get(b, off, n);
+                return n;
+            }
+        };
+    }
+
+    private Variant encodePreview(Path image, Path dir) throws IOException {
+        String format = this.format;
+        long originalSize = Files.size(image);
+        BufferedImage scaled;
+        try (ImageInputStream in = ImageIO.createImageInputStream(image.toFile())) {
+            scaled = readScaled(in, maxEdge, maxEdge, "png".equals(format));
+        }
+        if (scaled == null) {
+            skipped.incrementAndGet();
+            return null;
+        }
+        Path out = Files.createTempFile(dir, "preview-", ".bin");
+        boolean keep = false;
+        try {
+            try (OutputStream os = new java.io.BufferedOutputStream(Files.newOutputStream(out))) {
+                write(scaled, format, quality, os);
+            }
+            long size = Files.size(out);
+            keep = size < originalSize;
+            if (!keep) {
+                skipped.incrementAndGet();
+                return null;
+            }
+            processed.incrementAndGet();
+            bytesIn.addAndGet(originalSize);
+            bytesOut.addAndGet(size);
+            return new Variant(out, "png".equals(format) ? "image/png" : "image/jpeg", scaled.getWidth(), scaled.getHeight());
+        } finally {
+            if (!keep) {
+                Files.deleteIfExists(out);
+            }
+        }
+    }
+
+    // {width, height} of the first image in in from its header; null when no reader understands it
+    private static int[] readSize(ImageInputStream in) throws IOException {
+        if (in == null) return null;
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) return null;
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(in, true, true);
+            return new int[] {reader.getWidth(0), reader.getHeight(0)};
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    // Decodes the first image in in, scaled to fit maxWidth x maxHeight (never up), without its
+    // metadata; null when no reader understands it. Large sources are subsampled while
+    // decoding (to no less than twice the target size) so a 4K image is never held at full
+    // resolution. Transparency is kept only when allowAlpha and the source has it.
+    static BufferedImage readScaled(ImageInputStream in, int maxWidth, int maxHeight, boolean allowAlpha) throws IOException {
+        if (in == null) return null;
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+        if (!readers.hasNext()) return null;
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(in, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            double scale = Math.min(1.0, Math.min((double) maxWidth / width, (double) maxHeight / height));
+            int targetWidth = Math.max(1, (int) Math.round(width * scale));
+            int targetHeight = Math.max(1, (int) Math.round(height * scale));
+            ImageReadParam param = reader.getDefaultReadParam();
+            int subsampling = (int) Math.max(1, Math.floor(Math.max(width, height) / (2.0 * Math.max(targetWidth, targetHeight))));
+            if (subsampling > 1) {
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            }
+            BufferedImage decoded = reader.read(0, param);
+            return resize(decoded, targetWidth, targetHeight, !(allowAlpha && decoded.getColorModel().hasAlpha()));
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    // Halves with bilinear filtering until within 2x of the target, then draws at the target
+    // size; a single bilinear step from far above it would skip most source pixels. The result
+    // is always a fresh RGB (opaque: over white, for JPEG) or ARGB image.
+    private static BufferedImage resize(BufferedImage source, int width, int height, boolean opaque) {
+        BufferedImage current = source;
+        int w = source.getWidth();
+        int h = source.getHeight();
+        do {
+            w = w / 2 >= width ? w / 2 : width;
+            h = h / 2 >= height ? h / 2 : height;
+            boolean last = w == width && h == height;
+            BufferedImage next = new BufferedImage(w, h, opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+            Graphics2D g = next.createGraphics();
+            try {
+                if (opaque) {
+                    g.setColor(Color.WHITE);
+                    g.fillRect(0, 0, w, h);
+                }
+                g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+                g.drawImage(current, 0, 0, w, h, null);
+            } finally {
+                g.dispose();
+            }
+            current = next;
+            if (last) return current;
+        } while (true);
+    }
+
+    // No metadata is written: EXIF, text chunks and colour profiles of the source are dropped
+    static void write(BufferedImage image, String format, float quality, OutputStream out) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) throw new IOException("No ImageIO writer for " + format);
+        ImageWriter writer = writers.next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if ("jpeg".equals(format)) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private synchronized ThreadPoolExecutor pool() {
+        return pool;
+    }
+
+    void shutdown() {
+        ThreadPoolExecutor p = pool();
+        if (p != null) {
+            p.shutdownNow();
+        }
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    String getFormat() {
+        return format;
+    }
+
+    int getMaxEdge() {
+        return maxEdge;
+    }
+
+    long getProcessed() {
+        return processed.get();
+    }
+
+    long getSkipped() {
+        return skipped.get();
+    }
+
+    long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    boolean isSourceEnabled() {
+        return sourceEnabled;
+    }
+
+    long getSourcesNormalized() {
+        return sourcesNormalized.get();
+    }
+
+    long getSourceBytesIn() {
+        return sourceBytesIn.get();
+    }
+
+    long getSourceBytesOut() {
+        return sourceBytesOut.get();
+    }
+
+    synchronized int getActive() {
+        return pool.getActiveCount();
+    }
+
+    synchronized int getThreads() {
+        return pool.getMaximumPoolSize();
+    }
+}
@@ -0,0 +1,283 @@
+package com.gemininpc.plugin;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+// Content-addressed store for generated images: each picture is kept once, as
+// <sha256>.img in the plugin data folder, and library records and the result cache refer
+// to it by hash. Files are evicted least recently used first once they exceed maxBytes;
+// the access order survives restarts through the files' modification times. scrub()
+// re-hashes every file and deletes any whose content no longer matches its name.
+final class ImageStore {
+
+    private static final class Blob {
+        final long size;
+        // Last access as of load(); only used to order the files found on disk
+        final long lastUsed;
+
+        Blob(long size, long lastUsed) {
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    private static final String SUFFIX = ".img";
+    // Smaller files are read onto the heap; larger ones (4K images) are memory-mapped
+    private static final long MAP_THRESHOLD = 1024 * 1024;
+
+    private final Logger logger;
+    private final Path dir;
+    // Access order: least recently used first
+    private final LinkedHashMap<String, Blob> blobs = new LinkedHashMap<>(64, 0.75f, true);
+    private long maxBytes = 1024L * 1024 * 1024;
+    private long totalBytes;
+    private long evictions;
+    private long corrupted;
+    private long lastScrubAt;
+
+    ImageStore(Logger logger, Path dir) {
+        this.logger = logger;
+        this.dir = dir;
+    }
+
+    synchronized void configure(long maxBytes) {
+        this.maxBytes = Math.max(1024 * 1024, maxBytes);
+        evict(null);
+    }
+
+    // Blocking: indexes the files already on disk, oldest access first
+    void load() {
+        List<Path> files = new ArrayList<>();
+        try (var list = Files.list(dir)) {
+            list.forEach(files::add);
+        } catch (IOException e) {
+            // No directory yet
+            return;
+        }
+        LinkedHashMap<String, Blob> found = new LinkedHashMap<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            try {
+                if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    found.put(name.substring(0, name.length() - SUFFIX.length()),
+                        new Blob(Files.size(file), Files.getLastModifiedTime(file).toMillis()));
+                }
+            } catch (IOException ignored) {
+            }
+        }
+        List<Map.Entry<String, Blob>> sorted = new ArrayList<>(found.entrySet());
+        sorted.sort(Comparator.comparingLong(e -> e.getValue().lastUsed));
+        synchronized (this) {
+            for (Map.Entry<String, Blob> e : sorted) {
+                if (blobs.containsKey(e.getKey())) continue;
+                blobs.put(e.getKey(), e.getValue());
+                totalBytes += e.getValue().size;
+            }
+            evict(null);
+        }
+    }
+
+    // Blocking: hashes image and moves it into the store (it is gone from its old path
+    // afterwards); returns the hash. An image already stored is just marked as used.
+    String put(Path image) throws IOException {
+        MessageDigest sha256 = sha256();
+        long size;
+        try (InputStream in = new DigestInputStream(Files.newInputStream(image), sha256)) {
+            size = in.transferTo(OutputStream.nullOutputStream());
+        }
+        String hash = hex(sha256.digest());
+        Files.createDirectories(dir);
+        synchronized (this) {
+            Path target = file(hash);
+            if (blobs.get(hash) != null && Files.isRegularFile(target)) {
+                Files.deleteIfExists(image);
+                touch(hash);
+                return hash;
+            }
+            try {
+                Files.move(image, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                // Different file system: copy through a temp file so a reader never sees half a file
+                Path tmp = Files.createTempFile(dir, "put-", ".tmp");
+                try {
+                    Files.copy(image, tmp, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    Files.deleteIfExists(image);
+                } finally {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+            Blob previous = blobs.put(hash, new Blob(size, System.currentTimeMillis()));
+            totalBytes += size - (previous != null ? previous.size : 0);
+            evict(hash);
+        }
+        return hash;
+    }
+
+    synchronized boolean contains(String hash) {
+        return hash != null && blobs.containsKey(hash);
+    }
+
+    // Path of a stored image (marking it as used), or null when it is not in the store
+    synchronized Path path(String hash) {
+        if (!contains(hash)) return null;
+        Path file = file(hash);
+        if (!Files.isRegularFile(file)) {
+            forget(hash);
+            return null;
+        }
+        // get() moves it to the most recently used end
+        blobs.get(hash);
+        touch(hash);
+        return file;
+    }
+
+    // Stored image bytes, or null when it is not in the store. Large files come back as a
+    // read-only mapping, so they are streamed from the page cache instead of the heap.
+    ByteBuffer read(String hash) throws IOException {
+        Path file = path(hash);
+        if (file == null) return null;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            }
+            return buffer.flip();
+        }
+    }
+
+    // Blocking: re-hashes every stored file, deleting those whose content does not match
+    // their name (torn writes, disk errors, edits by hand). Returns how many were deleted.
+    int scrub() {
+        List<String> hashes;
+        synchronized (this) {
+            hashes = new ArrayList<>(blobs.keySet());
+        }
+        int removed = 0;
+        for (String hash : hashes) {
+            Path file = file(hash);
+            MessageDigest digest = sha256();
+            String actual;
+            try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+                in.transferTo(OutputStream.nullOutputStream());
+                actual = hex(digest.digest());
+            } catch (IOException e) {
+                actual = null;
+            }
+            if (hash.equals(actual)) continue;
+            synchronized (this) {
+                if (!blobs.containsKey(hash)) continue;
+                forget(hash);
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ignored) {
+                }
+                corrupted++;
+            }
+            removed++;
+            logger.warning("Image store: " + hash + " failed its integrity check and was removed");
+        }
+        synchronized (this) {
+            lastScrubAt = System.currentTimeMillis();
+        }
+        return removed;
+    }
+
+    // Least recently used first, never the file just stored
+    private void evict(String keep) {
+        var it = blobs.entrySet().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            var e = it.next();
+            if (e.getKey().equals(keep)) continue;
+            it.remove();
+            totalBytes -= e.getValue().size;
+            evictions++;
+            try {
+                Files.deleteIfExists(file(e.getKey()));
+            } catch (IOException ex) {
+                logger.warning("Could not delete stored image " + e.getKey() + ": " + ex.getMessage());
+            }
+        }
+    }
+
+    private void forget(String hash) {
+        Blob blob = blobs.remove(hash);
+        if (blob != null) {
+            totalBytes -= blob.size;
+        }
+    }
+
+    // Keeps the access order across restarts; best effort
+    private void touch(String hash) {
+        try {
+            Files.setLastModifiedTime(file(hash), FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+        }
+    }
+
+    private Path file(String hash) {
+        return dir.resolve(hash + SUFFIX);
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder out = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            out.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return out.toString();
+    }
+
+    synchronized int size() {
+        return blobs.size();
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized long getMaxBytes() {
+        return maxBytes;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    synchronized long getCorrupted() {
+        return corrupted;
+    }
+
+    synchronized long getLastScrubAt() {
+        return lastScrubAt;
+    }
+}
@@ -0,0 +1,128 @@
+package com.gemininpc.plugin;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Dedicated virtual-thread-per-task executor for all blocking plugin I/O, so slow Gemini
+// calls or uploads never occupy Bukkit's shared async pool. Each resource class has its own
+// bounded semaphore; waiting for a permit parks only the virtual thread.
+final class IoExecutor {
+
+    // Gemini API calls are bounded by AdmissionController instead
+    enum Resource {
+        // Uploads to catbox/litterbox/imgbb and I2I source downloads
+        HOSTING_UPLOAD,
+        GAS,
+        DISK
+    }
+
+    interface IoCall<T> {
+        T call() throws Exception;
+    }
+
+    private final Logger logger;
+    private final ExecutorService threads;
+    private final Map<Resource, Semaphore> permits = new EnumMap<>(Resource.class);
+    private final Map<Resource, Integer> limits = new EnumMap<>(Resource.class);
+    private final Map<Resource, AtomicInteger> active = new EnumMap<>(Resource.class);
+
+    IoExecutor(Logger logger) {
+        this.logger = logger;
+        this.threads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("if-Gemini-io-", 0).factory());
+        for (Resource resource : Resource.values()) {
+            active.put(resource, new AtomicInteger());
+            configure(resource, 4);
+        }
+    }
+
+    // In-flight calls keep the permit pool they acquired from
+    synchronized void configure(Resource resource, int limit) {
+        int max = Math.max(1, limit);
+        Integer current = limits.get(resource);
+        if (current == null || current != max) {
+            permits.put(resource, new Semaphore(max, true));
+            limits.put(resource, max);
+        }
+    }
+
+    // Runs a task on its own virtual thread without taking a permit (for tasks that only
+    // dispatch work or scope their permits with call())
+    void execute(Runnable task) {
+        threads.execute(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.log(Level.SEVERE, "[if-Gemini] Uncaught error in I/O task", t);
+            }
+        });
+    }
+
+    void execute(Resource resource, Runnable task) {
+        execute(() -> {
+            try {
+                call(resource, () -> {
+                    task.run();
+                    return null;
+                });
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    Executor executor(Resource resource) {
+        return task -> execute(resource, task);
+    }
+
+    // Blocks (parks) the calling virtual thread until a permit for the resource is free
+    <T> T call(Resource resource, IoCall<T> call) throws Exception {
+        Semaphore pool;
+        synchronized (this) {
+            pool = permits.get(resource);
+        }
+        pool.acquire();
+        AtomicInteger counter = active.get(resource);
+        counter.incrementAndGet();
+        try {
+            return call.call();
+        } finally {
+            counter.decrementAndGet();
+            pool.release();
+        }
+    }
+
+    int getActive(Resource resource) {
+        return active.get(resource).get();
+    }
+
+    synchronized int getLimit(Resource resource) {
+        return limits.get(resource);
+    }
+
+    synchronized int getWaiting(Resource resource) {
+        return permits.get(resource).getQueueLength();
+    }
+
+    // Lets queued work (library saves, spreadsheet logs) finish for a few seconds on disable
+    void shutdown() {
+        threads.shutdown();
+        try {
+            if (!threads.awaitTermination(5, TimeUnit.SECONDS)) {
+                threads.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            threads.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
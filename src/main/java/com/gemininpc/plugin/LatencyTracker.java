@@ -0,0 +1,50 @@
+package com.gemininpc.plugin;
+
+import java.util.Arrays;
+
+// Rolling latency window (last N samples) with average and percentile lookups; both cover
+// only the window. count() is the all-time number of samples.
+// Used for user-facing metrics such as time-to-first-visible-text.
+final class LatencyTracker {
+
+    private final long[] samples;
+    private int next;
+    private int size;
+    private long count;
+    private long windowTotal;
+
+    LatencyTracker(int windowSize) {
+        this.samples = new long[Math.max(1, windowSize)];
+    }
+
+    synchronized void record(long millis) {
+        if (size == samples.length) windowTotal -= samples[next];
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (size < samples.length) size++;
+        count++;
+        windowTotal += millis;
+    }
+
+    // p in 0-100; -1 when nothing has been recorded yet
+    synchronized long percentile(double p) {
+        if (size == 0) return -1;
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(p / 100.0 * size) - 1;
+        return sorted[Math.max(0, Math.min(size - 1, index))];
+    }
+
+    // -1 when nothing has been recorded yet
+    synchronized long average() {
+        return size == 0 ? -1 : windowTotal / size;
+    }
+
+    synchronized long count() {
+        return count;
+    }
+
+    synchronized int windowSize() {
+        return size;
+    }
+}
@@ -0,0 +1,247 @@
+package com.gemininpc.plugin;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// image.hosting: local. Serves the ImageStore over HTTP with the JDK's embedded server, so
+// a generated image is linked the moment it is stored instead of after a third-party
+// upload. URLs name the content hash (<publicUrl>/images/<sha256>), which makes every
+// response immutable: the hash is a strong ETag (If-None-Match -> 304) and clients may
+// cache forever. Single byte ranges are honoured (206/416). Bodies are sent straight from
+// the file channel; the embedded server only exposes a stream, so this is transferTo into
+// that stream rather than sendfile. Only GET and HEAD of well-formed hashes are answered.
+final class LocalImageServer {
+
+    private static final Pattern IMAGE_PATH = Pattern.compile("^/images/([0-9a-f]{64})$");
+    private static final Pattern RANGE = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+    private final Logger logger;
+    private final ImageStore store;
+    private HttpServer server;
+    private ExecutorService threads;
+    private String bindAddress;
+    private int port;
+    private volatile String publicUrl;
+
+    LocalImageServer(Logger logger, ImageStore store) {
+        this.logger = logger;
+        this.store = store;
+    }
+
+    // Starts, restarts (address or port changed) or stops the server. false if it could not bind.
+    synchronized boolean configure(boolean enabled, String bindAddress, int port, String publicUrl) {
+        this.publicUrl = publicUrl.endsWith("/") ? publicUrl.substring(0, publicUrl.length() - 1) : publicUrl;
+        if (server != null && (!enabled || !bindAddress.equals(this.bindAddress) || port != this.port)) {
+            stop();
+        }
+        if (!enabled) return true;
+        String publicHost = hostOf(this.publicUrl);
+        if (publicHost == null) {
+            logger.warning("image.local-server.public-url (" + this.publicUrl + ") is not a valid http(s) URL");
+        } else if (isLoopback(publicHost) && !isLoopback(bindAddress)) {
+            // Players would be handed links to their own machine
+            logger.warning("image.local-server.public-url (" + this.publicUrl + ") points at this machine's loopback"
+                + " address while the server listens on " + bindAddress + "; set it to an address players can reach");
+        }
+        if (server != null) return true;
+        try {
+            HttpServer created = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+            threads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("if-Gemini-images-", 0).factory());
+            created.setExecutor(threads);
+            created.createContext("/images/", this::handle);
+            created.start();
+            server = created;
+            this.bindAddress = bindAddress;
+            this.port = port;
+            logger.info("Local image server listening on " + bindAddress + ":" + port + " (" + this.publicUrl + ")");
+            return true;
+        } catch (IOException | RuntimeException e) {
+            logger.severe("Local image server could not start on " + bindAddress + ":" + port + ": " + e.getMessage());
+            if (threads != null) threads.shutdownNow();
+            threads = null;
+            return false;
+        }
+    }
+
+    private static String hostOf(String url) {
+        try {
+            return URI.create(url).getHost();
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // By name only (no DNS lookup): localhost, 127.0.0.0/8 and ::1
+    static boolean isLoopback(String host) {
+        String h = host.toLowerCase(Locale.ROOT);
+        if (h.startsWith("[") && h.endsWith("]")) h = h.substring(1, h.length() - 1);
+        return h.equals("localhost") || h.endsWith(".localhost") || h.startsWith("127.")
+            || h.equals("::1") || h.equals("0:0:0:0:0:0:0:1");
+    }
+
+    synchronized void stop() {
+        if (server == null) return;
+        server.stop(0);
+        threads.shutdownNow();
+        server = null;
+        threads = null;
+    }
+
+    synchronized boolean isRunning() {
+        return server != null;
+    }
+
+    String urlFor(String hash) {
+        return publicUrl + "/images/" + hash;
+    }
+
+    // The store hash behind one of this server's URLs, or null for any other URL
+    String hashOf(String url) {
+        String prefix = publicUrl + "/images/";
+        if (url == null || !url.startsWith(prefix)) return null;
+        String hash = url.substring(prefix.length());
+        return hash.length() == 64 ? hash : null;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            boolean head = "HEAD".equals(method);
+            if (!head && !"GET".equals(method)) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            Matcher matcher = IMAGE_PATH.matcher(exchange.getRequestURI().getPath());
+            Path file = matcher.matches() ? store.path(matcher.group(1)) : null;
+            if (file == null) {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            String etag = "\"" + matcher.group(1) + "\"";
+            Headers response = exchange.getResponseHeaders();
+            response.set("ETag", etag);
+            response.set("Cache-Control", "public, max-age=31536000, immutable");
+            response.set("Accept-Ranges", "bytes");
+            String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+            if (ifNoneMatch != null && (ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*"))) {
+                exchange.sendResponseHeaders(304, -1);
+                return;
+            }
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                response.set("Content-Type", contentType(channel));
+                long start = 0;
+                long end = size - 1;
+                int status = 200;
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                    long[] bounds = parseRange(range, size);
+                    if (bounds == null) {
+                        response.set("Content-Range", "bytes */" + size);
+                        exchange.sendResponseHeaders(416, -1);
+                        return;
+                    }
+                    if (bounds.length == 2) {
+                        start = bounds[0];
+                        end = bounds[1];
+                        status = 206;
+                        response.set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+                    }
+                }
+                long length = end - start + 1;
+                if (head || length == 0) {
+                    // -1 sends no body (0 would mean chunked to this API); HEAD still reports the size
+                    response.set("Content-Length", Long.toString(length));
+                    exchange.sendResponseHeaders(status, -1);
+                    return;
+                }
+                exchange.sendResponseHeaders(status, length);
+                OutputStream out = exchange.getResponseBody();
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = start;
+                while (position <= end) {
+                    position += channel.transferTo(position, end - position + 1, target);
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away mid-transfer
+        } catch (RuntimeException e) {
+            logger.warning("Local image server error: " + e.getMessage());
+        }
+    }
+
+    // {start, end} for one satisfiable range, an empty array to ignore the header
+    // (multiple or malformed ranges: the whole file is sent), null when unsatisfiable
+    static long[] parseRange(String header, long size) {
+        Matcher matcher = RANGE.matcher(header.trim());
+        if (!matcher.matches()) return new long[0];
+        String first = matcher.group(1);
+        String last = matcher.group(2);
+        try {
+            if (first.isEmpty()) {
+                if (last.isEmpty()) return new long[0];
+                // Suffix range: the last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix == 0 || size == 0) return null;
+                return new long[] {Math.max(0, size - suffix), size - 1};
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            if (start >= size || end < start) return null;
+            return new long[] {start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    // From the file's first bytes; the store keeps no file extensions
+    private static String contentType(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        channel.read(header, 0);
+        header.flip();
+        byte[] magic = new byte[header.remaining()];
+        header.get(magic);
+        String mime = sniffImageType(magic);
+        return mime != null ? mime : "application/octet-stream";
+    }
+
+    // PNG, JPEG, WebP or GIF by signature; null for anything else
+    static String sniffImageType(byte[] magic) {
+        if (magic.length >= 8 && (magic[0] & 0xFF) == 0x89 && magic[1] == 'P' && magic[2] == 'N' && magic[3] == 'G') {
+            return "image/png";
+        }
+        if (magic.length >= 3 && (magic[0] & 0xFF) == 0xFF && (magic[1] & 0xFF) == 0xD8 && (magic[2] & 0xFF) == 0xFF) {
+            return "image/jpeg";
+        }
+        if (magic.length >= 12 && magic[0] == 'R' && magic[1] == 'I' && magic[2] == 'F' && magic[3] == 'F'
+            && magic[8] == 'W' && magic[9] == 'E' && magic[10] == 'B' && magic[11] == 'P') {
+            return "image/webp";
+        }
+        if (magic.length >= 6 && magic[0] == 'G' && magic[1] == 'I' && magic[2] == 'F' && magic[3] == '8') {
+            return "image/gif";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,104 @@
+package com.gemininpc.plugin;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Debounces consecutive chat lines from the same player into one message. Each new line
+// restarts the window; when it expires (or maxLines is reached, or the player switches
+// mode) the joined lines are dispatched as a single request.
+final class MessageCoalescer {
+
+    private static final class Pending {
+        final String mode;
+        final StringBuilder text = new StringBuilder();
+        final Consumer<String> dispatch;
+        int lines;
+        ScheduledFuture<?> timer;
+
+        Pending(String mode, Consumer<String> dispatch) {
+            this.mode = mode;
+            this.dispatch = dispatch;
+        }
+    }
+
+    private final ScheduledExecutorService timer;
+    private final Map<UUID, Pending> pending = new ConcurrentHashMap<>();
+    private volatile int maxLines = 4;
+
+    MessageCoalescer() {
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "if-Gemini-coalesce");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void setMaxLines(int maxLines) {
+        this.maxLines = Math.max(1, maxLines);
+    }
+
+    void submit(UUID playerId, String mode, String line, long windowMs, Consumer<String> dispatch) {
+        Pending[] ready = new Pending[2];
+        pending.compute(playerId, (id, current) -> {
+            if (current != null && !current.mode.equals(mode)) {
+                current.timer.cancel(false);
+                ready[0] = current;
+                current = null;
+            }
+            if (current == null) {
+                current = new Pending(mode, dispatch);
+            } else {
+                current.timer.cancel(false);
+                current.text.append('\n');
+            }
+            current.text.append(line);
+            current.lines++;
+            if (current.lines >= maxLines) {
+                ready[1] = current;
+                return null;
+            }
+            Pending scheduled = current;
+            current.timer = timer.schedule(() -> fire(id, scheduled), windowMs, TimeUnit.MILLISECONDS);
+            return current;
+        });
+        for (Pending p : ready) {
+            if (p != null) {
+                p.dispatch.accept(p.text.toString());
+            }
+        }
+    }
+
+    // Dispatches whatever the player has buffered right away (e.g. on mode change)
+    void flush(UUID playerId) {
+        Pending p = pending.remove(playerId);
+        if (p != null) {
+            p.timer.cancel(false);
+            p.dispatch.accept(p.text.toString());
+        }
+    }
+
+    // Drops buffered lines without dispatching (player quit)
+    void discard(UUID playerId) {
+        Pending p = pending.remove(playerId);
+        if (p != null) {
+            p.timer.cancel(false);
+        }
+    }
+
+    private void fire(UUID playerId, Pending expected) {
+        if (pending.remove(playerId, expected)) {
+            expected.dispatch.accept(expected.text.toString());
+        }
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+        pending.clear();
+    }
+}
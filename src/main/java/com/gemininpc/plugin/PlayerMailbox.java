@@ -0,0 +1,68 @@
+package com.gemininpc.plugin;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Per-player actor: requests run strictly one after another, each starting only when the
+// previous one's future has completed, so a player's conversation history is only ever
+// touched by one request at a time. Enqueueing is lock-free (queue + depth counter); the
+// submitter that moves depth from 0 to 1 starts the drain.
+final class PlayerMailbox {
+
+    private final Executor executor;
+    private final Logger logger;
+    private final ConcurrentLinkedQueue<Supplier<CompletableFuture<?>>> queue = new ConcurrentLinkedQueue<>();
+    // Queued plus running
+    private final AtomicInteger depth = new AtomicInteger();
+
+    PlayerMailbox(Executor executor, Logger logger) {
+        this.executor = executor;
+        this.logger = logger;
+    }
+
+    // Returns the number of requests ahead of this one (0 = runs immediately)
+    int submit(Supplier<CompletableFuture<?>> task) {
+        queue.add(task);
+        int ahead = depth.getAndIncrement();
+        if (ahead == 0) {
+            executor.execute(this::runNext);
+        }
+        return ahead;
+    }
+
+    int depth() {
+        return depth.get();
+    }
+
+    private void runNext() {
+        Supplier<CompletableFuture<?>> task = queue.poll();
+        CompletableFuture<?> future;
+        try {
+            future = task.get();
+        } catch (Throwable t) {
+            logger.log(Level.SEVERE, "[if-Gemini] Player request failed", t);
+            future = null;
+        }
+        if (future == null) {
+            afterTask();
+            return;
+        }
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                logger.log(Level.SEVERE, "[if-Gemini] Player request failed", error);
+            }
+            afterTask();
+        });
+    }
+
+    private void afterTask() {
+        if (depth.decrementAndGet() > 0) {
+            executor.execute(this::runNext);
+        }
+    }
+}
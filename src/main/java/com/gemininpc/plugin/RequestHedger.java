@@ -0,0 +1,267 @@
+package com.gemininpc.plugin;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+// Hedged requests for tail latency. The primary leg runs on its own virtual thread; if it has
+// not produced its first text within the configured percentile of that model's recent
+// time-to-first-text, a second leg is started. Whichever leg claims first wins and the other
+// is aborted by interrupting its thread (which cancels its HTTP exchange). Every leg that was
+// sent adds a latency sample, losers included; an aborted leg adds the time it had waited so
+// far (a lower bound), so slow legs keep the percentile honest instead of dropping out of it.
+// Hedges draw from a budget that earns budgetPercent/100 of a hedge per primary call, so
+// hedging can never add more than that share of extra API calls.
+final class RequestHedger {
+
+    interface Leg<T> {
+        T run(Claim claim) throws Exception;
+    }
+
+    // Handed to each leg. The leg calls sending() right before its request goes out and win()
+    // once it has parsed response text (not on a 200 alone: an empty or blocked candidate must
+    // not cancel the other leg); a leg whose win() returns false lost the race and must stop
+    // without using its response.
+    static final class Claim {
+        private final RequestHedger hedger;
+        private final AtomicReference<Claim> winner;
+        private final CompletableFuture<Claim> claimed;
+        private final CompletableFuture<Void> sent = new CompletableFuture<>();
+        private final AtomicBoolean recorded = new AtomicBoolean();
+        private volatile String model;
+        private volatile long sentAt;
+
+        private Claim(RequestHedger hedger, AtomicReference<Claim> winner, CompletableFuture<Claim> claimed) {
+            this.hedger = hedger;
+            this.winner = winner;
+            this.claimed = claimed;
+        }
+
+        void sending(String model) {
+            this.model = model;
+            this.sentAt = System.currentTimeMillis();
+            sent.complete(null);
+        }
+
+        boolean win() {
+            recordLatency();
+            if (winner.compareAndSet(null, this)) {
+                claimed.complete(this);
+                return true;
+            }
+            return winner.get() == this;
+        }
+
+        // Once per leg, from the first of: its text arriving, its abort, or it finishing
+        private void recordLatency() {
+            if (model != null && recorded.compareAndSet(false, true)) {
+                hedger.trackerFor(model).record(System.currentTimeMillis() - sentAt);
+            }
+        }
+
+        boolean lost() {
+            Claim current = winner.get();
+            return current != null && current != this;
+        }
+    }
+
+    private static final class LegRun<T> {
+        final Claim claim;
+        final CompletableFuture<LegRun<T>> done = new CompletableFuture<>();
+        final AtomicReference<Thread> thread = new AtomicReference<>();
+        volatile boolean aborted;
+        T value;
+        Exception error;
+
+        LegRun(Claim claim) {
+            this.claim = claim;
+        }
+
+        void abort() {
+            aborted = true;
+            // Censored sample: this leg would have taken at least this long
+            claim.recordLatency();
+            Thread t = thread.get();
+            if (t != null) {
+                t.interrupt();
+            }
+        }
+
+        T result() throws Exception {
+            if (error != null) throw error;
+            return value;
+        }
+    }
+
+    // Percentiles need some history before they mean anything
+    private static final int MIN_SAMPLES = 20;
+    private static final double MAX_BUDGET = 10;
+
+    private final Executor executor;
+    private final Map<String, LatencyTracker> firstByte = new ConcurrentHashMap<>();
+    private final AtomicLong hedgesFired = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    private volatile boolean enabled;
+    private volatile double percentile = 95;
+    private volatile long minDelayMs = 2000;
+    private volatile double budgetPercent = 10;
+    private double budget;
+
+    RequestHedger(Executor executor) {
+        this.executor = executor;
+    }
+
+    void configure(boolean enabled, double percentile, long minDelayMs, double budgetPercent) {
+        this.enabled = enabled;
+        this.percentile = Math.max(50, Math.min(99.9, percentile));
+        this.minDelayMs = Math.max(0, minDelayMs);
+        this.budgetPercent = Math.max(0, Math.min(100, budgetPercent));
+    }
+
+    // hedge is only asked for a leg when the hedge actually fires; it may return null to skip
+    <T> T call(Leg<T> primary, Supplier<Leg<T>> hedge) throws Exception {
+        AtomicReference<Claim> winner = new AtomicReference<>();
+        CompletableFuture<Claim> claimed = new CompletableFuture<>();
+        Claim primaryClaim = new Claim(this, winner, claimed);
+        if (!enabled) {
+            return primary.run(primaryClaim);
+        }
+        earnBudget();
+
+        LegRun<T> first = start(primary, primaryClaim);
+        LegRun<T> second = null;
+        try {
+            // The hedge delay counts from when the primary was actually sent (after admission)
+            CompletableFuture.anyOf(primaryClaim.sent, first.done).get();
+            long delay = first.done.isDone() ? -1 : hedgeDelay(primaryClaim.model);
+            if (delay >= 0) {
+                long wait = delay - (System.currentTimeMillis() - primaryClaim.sentAt);
+                try {
+                    CompletableFuture.anyOf(first.done, claimed).get(Math.max(0, wait), TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ignored) {
+                }
+                if (!first.done.isDone() && !claimed.isDone() && takeBudget()) {
+                    Leg<T> hedgeLeg = hedge.get();
+                    if (hedgeLeg != null) {
+                        hedgesFired.incrementAndGet();
+                        second = start(hedgeLeg, new Claim(this, winner, claimed));
+                    } else {
+                        refundBudget();
+                    }
+                }
+            }
+            return race(first, second, claimed);
+        } catch (InterruptedException e) {
+            first.abort();
+            if (second != null) second.abort();
+            throw e;
+        }
+    }
+
+    private <T> T race(LegRun<T> first, LegRun<T> second, CompletableFuture<Claim> claimed) throws Exception {
+        while (true) {
+            Claim won = claimed.getNow(null);
+            if (won != null) {
+                LegRun<T> winnerRun = won == first.claim ? first : second;
+                LegRun<T> loserRun = winnerRun == first ? second : first;
+                if (loserRun != null) loserRun.abort();
+                if (winnerRun == second) hedgeWins.incrementAndGet();
+                return winnerRun.done.get().result();
+            }
+            boolean firstDone = first.done.isDone();
+            boolean secondDone = second == null || second.done.isDone();
+            if (firstDone && secondDone) {
+                // Neither leg got a good first byte: prefer a value, then a retryable error
+                if (second == null) return first.result();
+                if (first.value != null) return first.value;
+                if (second.value != null) return second.value;
+                if (first.error instanceof RetryScheduler.RetryableException) throw first.error;
+                return second.result();
+            }
+            if (firstDone) {
+                CompletableFuture.anyOf(second.done, claimed).get();
+            } else if (secondDone) {
+                CompletableFuture.anyOf(first.done, claimed).get();
+            } else {
+                CompletableFuture.anyOf(first.done, second.done, claimed).get();
+            }
+        }
+    }
+
+    private <T> LegRun<T> start(Leg<T> leg, Claim claim) {
+        LegRun<T> run = new LegRun<>(claim);
+        executor.execute(() -> {
+            run.thread.set(Thread.currentThread());
+            if (run.aborted) Thread.currentThread().interrupt();
+            try {
+                run.value = leg.run(claim);
+                // Finished without claiming (e.g. a response with no text)
+                claim.recordLatency();
+            } catch (Exception e) {
+                run.error = e;
+            } finally {
+                run.thread.set(null);
+                // Unblocks anyone waiting for the primary to be sent
+                claim.sent.complete(null);
+                run.done.complete(run);
+            }
+        });
+        return run;
+    }
+
+    // -1 while there is not enough latency history to pick a threshold
+    private long hedgeDelay(String model) {
+        if (model == null) return -1;
+        LatencyTracker tracker = trackerFor(model);
+        if (tracker.windowSize() < MIN_SAMPLES) return -1;
+        return Math.max(minDelayMs, tracker.percentile(percentile));
+    }
+
+    private LatencyTracker trackerFor(String model) {
+        return firstByte.computeIfAbsent(model, k -> new LatencyTracker(200));
+    }
+
+    private synchronized void earnBudget() {
+        budget = Math.min(MAX_BUDGET, budget + budgetPercent / 100.0);
+    }
+
+    private synchronized boolean takeBudget() {
+        if (budget < 1) return false;
+        budget -= 1;
+        return true;
+    }
+
+    private synchronized void refundBudget() {
+        budget = Math.min(MAX_BUDGET, budget + 1);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    synchronized double getBudget() {
+        return budget;
+    }
+
+    long getHedgesFired() {
+        return hedgesFired.get();
+    }
+
+    long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    // -1 when the model has no samples yet
+    long getFirstBytePercentile(String model) {
+        LatencyTracker tracker = firstByte.get(model);
+        return tracker == null ? -1 : tracker.percentile(percentile);
+    }
+}
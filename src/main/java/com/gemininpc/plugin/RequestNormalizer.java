@@ -0,0 +1,231 @@
+package com.gemininpc.plugin;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Folds the ways players type the same request into one string: NFKC (full/half width),
+// lower case, katakana to hiragana, Hepburn/Kunrei romaji to hiragana, whitespace collapsed
+// (and dropped next to Japanese text) and trailing sentence punctuation removed.
+// "ｻｲｷｮｳの剣", "saikyou no 剣" and "サイキョウ の 剣。" all become "さいきょうの剣".
+// A run of Latin words is only folded when it borders kana or kanji, or when every word is a
+// known Japanese word; English often reads as romaji too ("one time" and "one chime" would
+// both become おねちめ), so it is left as typed, as are item IDs (diamond_sword, minecraft:stone).
+final class RequestNormalizer {
+
+    private static final Map<String, String> ROMAJI = new HashMap<>();
+    private static final int MAX_SYLLABLE = 3;
+
+    // Words players type in romaji requests. Kept free of English words (no "hi", "he", "go",
+    // "site"), since a run made only of these is folded without any Japanese next to it.
+    private static final Set<String> ROMAJI_WORDS = new HashSet<>(List.of(
+        // Particles and counters
+        "no", "wo", "ga", "ni", "de", "to", "wa", "mo", "ya", "kara", "made", "yori", "dake", "ne",
+        "ko", "kko", "mai", "hon", "hiki", "biki", "piki", "tsu", "tu", "ippai", "takusan", "zenbu", "subete",
+        "motto", "sukoshi", "ichi", "san", "yon", "roku", "nana", "hachi", "kyuu", "juu", "hyaku",
+        // Requests
+        "kudasai", "kure", "choudai", "tyoudai", "chodai", "onegai", "onegaishimasu", "hoshii", "hosii",
+        "tsukutte", "tukutte", "tsukuru", "tukuru", "shite", "yatte", "dashite", "dasite", "agete", "kaite",
+        "misete", "yonde", "shoukan", "syoukan", "kyouka", "kaizou",
+        // Adjectives
+        "saikyou", "saikyo", "tsuyoi", "tuyoi", "sugoi", "ookii", "chiisai", "tiisai", "kakkoii", "kawaii",
+        "kirei", "kireina", "utsukushii", "atarashii", "hayai", "katai", "nagai", "ii", "yoi",
+        "akai", "aoi", "shiroi", "siroi", "kuroi", "kiiroi", "midori", "ougon", "kin", "gin",
+        // Things
+        "ken", "tsurugi", "turugi", "yoroi", "tate", "yumi", "ono", "kabuto", "buki", "bougu", "dougu",
+        "ie", "oshiro", "shiro", "siro", "tou", "hashi", "hasi", "mura", "daiya", "tetsu", "tetu",
+        "ishi", "isi", "ki", "tsuchi", "tuti", "mizu", "honoo", "mahou", "kusuri", "taimatsu", "tsuruhashi",
+        "uma", "inu", "neko", "esa"
+    ));
+
+    static {
+        String[][] table = {
+            {"a", "あ"}, {"i", "い"}, {"u", "う"}, {"e", "え"}, {"o", "お"},
+            {"ka", "か"}, {"ki", "き"}, {"ku", "く"}, {"ke", "け"}, {"ko", "こ"},
+            {"sa", "さ"}, {"si", "し"}, {"shi", "し"}, {"su", "す"}, {"se", "せ"}, {"so", "そ"},
+            {"ta", "た"}, {"ti", "ち"}, {"chi", "ち"}, {"tu", "つ"}, {"tsu", "つ"}, {"te", "て"}, {"to", "と"},
+            {"na", "な"}, {"ni", "に"}, {"nu", "ぬ"}, {"ne", "ね"}, {"no", "の"},
+            {"ha", "は"}, {"hi", "ひ"}, {"hu", "ふ"}, {"fu", "ふ"}, {"he", "へ"}, {"ho", "ほ"},
+            {"ma", "ま"}, {"mi", "み"}, {"mu", "む"}, {"me", "め"}, {"mo", "も"},
+            {"ya", "や"}, {"yu", "ゆ"}, {"yo", "よ"},
+            {"ra", "ら"}, {"ri", "り"}, {"ru", "る"}, {"re", "れ"}, {"ro", "ろ"},
+            {"wa", "わ"}, {"wo", "を"},
+            {"ga", "が"}, {"gi", "ぎ"}, {"gu", "ぐ"}, {"ge", "げ"}, {"go", "ご"},
+            {"za", "ざ"}, {"zi", "じ"}, {"ji", "じ"}, {"zu", "ず"}, {"ze", "ぜ"}, {"zo", "ぞ"},
+            {"da", "だ"}, {"di", "ぢ"}, {"du", "づ"}, {"de", "で"}, {"do", "ど"},
+            {"ba", "ば"}, {"bi", "び"}, {"bu", "ぶ"}, {"be", "べ"}, {"bo", "ぼ"},
+            {"pa", "ぱ"}, {"pi", "ぴ"}, {"pu", "ぷ"}, {"pe", "ぺ"}, {"po", "ぽ"},
+            {"fa", "ふぁ"}, {"fi", "ふぃ"}, {"fe", "ふぇ"}, {"fo", "ふぉ"},
+            {"va", "ゔぁ"}, {"vi", "ゔぃ"}, {"vu", "ゔ"}, {"ve", "ゔぇ"}, {"vo", "ゔぉ"},
+            {"sha", "しゃ"}, {"shu", "しゅ"}, {"sho", "しょ"}, {"she", "しぇ"},
+            {"cha", "ちゃ"}, {"chu", "ちゅ"}, {"cho", "ちょ"}, {"che", "ちぇ"},
+            {"ja", "じゃ"}, {"ju", "じゅ"}, {"jo", "じょ"}, {"je", "じぇ"},
+        };
+        for (String[] entry : table) {
+            ROMAJI.put(entry[0], entry[1]);
+        }
+        // Contracted sounds: kya, sya, tya, ... (the i-column kana plus a small ya/yu/yo)
+        String[][] smallY = {{"a", "ゃ"}, {"u", "ゅ"}, {"o", "ょ"}};
+        for (String consonant : new String[] {"k", "s", "t", "n", "h", "m", "r", "g", "z", "d", "b", "p", "j"}) {
+            String base = ROMAJI.get(consonant + "i");
+            for (String[] y : smallY) {
+                ROMAJI.putIfAbsent(consonant + "y" + y[0], base + y[1]);
+            }
+        }
+    }
+
+    private RequestNormalizer() {
+    }
+
+    static String normalize(String text) {
+        if (text == null) return "";
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        StringBuilder out = new StringBuilder(folded.length());
+        int i = 0;
+        while (i < folded.length()) {
+            char c = folded.charAt(i);
+            if (isAsciiLetter(c)) {
+                // A run of Latin words: letters, apostrophes and the spaces between them
+                int end = i;
+                while (end < folded.length() && (isAsciiLetter(folded.charAt(end)) || folded.charAt(end) == '\''
+                        || Character.isWhitespace(folded.charAt(end)))) {
+                    end++;
+                }
+                while (Character.isWhitespace(folded.charAt(end - 1))) {
+                    end--;
+                }
+                appendLatin(out, folded, i, end);
+                i = end;
+            } else if (c >= 'ァ' && c <= 'ヶ') {
+                // Katakana block maps 1:1 onto hiragana (ヴ/ヵ/ヶ included)
+                out.append((char) (c - 0x60));
+                i++;
+            } else {
+                out.append(c);
+                i++;
+            }
+        }
+        return collapseWhitespace(out);
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return c >= 'a' && c <= 'z';
+    }
+
+    // Part of an item or entity ID when touching one of these (diamond_sword, minecraft:stone)
+    private static boolean isIdentifierChar(char c) {
+        return c == '_' || c == ':' || c == '.' || c == '/' || c == '-';
+    }
+
+    // The words of text[start, end) as kana when all of them read as romaji and the run either
+    // borders kana/kanji or consists of known words (ROMAJI_WORDS), otherwise as typed. Words
+    // joined to an ID are always kept and do not count.
+    private static void appendLatin(StringBuilder out, String text, int start, int end) {
+        String[] words = text.substring(start, end).split("\\s+");
+        boolean idBefore = start > 0 && isIdentifierChar(text.charAt(start - 1));
+        boolean idAfter = end < text.length() && isIdentifierChar(text.charAt(end));
+        List<String> kana = new ArrayList<>(words.length);
+        boolean romaji = true;
+        boolean known = true;
+        for (int w = 0; w < words.length; w++) {
+            boolean id = (w == 0 && idBefore) || (w == words.length - 1 && idAfter);
+            String converted = id ? null : toKana(words[w]);
+            if (!id && converted == null) romaji = false;
+            if (!id && !ROMAJI_WORDS.contains(words[w])) known = false;
+            kana.add(converted);
+        }
+        romaji &= known || nextToJapanese(text, start, end);
+        for (int w = 0; w < words.length; w++) {
+            if (w > 0) out.append(' ');
+            out.append(romaji && kana.get(w) != null ? kana.get(w) : words[w]);
+        }
+    }
+
+    private static boolean nextToJapanese(String text, int start, int end) {
+        int before = start - 1;
+        while (before >= 0 && Character.isWhitespace(text.charAt(before))) before--;
+        int after = end;
+        while (after < text.length() && Character.isWhitespace(text.charAt(after))) after++;
+        return (before >= 0 && isKanaOrKanji(text.charAt(before))) || (after < text.length() && isKanaOrKanji(text.charAt(after)));
+    }
+
+    // Hiragana, katakana (with ー) and CJK ideographs; Japanese punctuation alone does not count
+    private static boolean isKanaOrKanji(char c) {
+        return (c >= 0x3041 && c <= 0x30ff) || (c >= 0x3400 && c <= 0x4dbf) || (c >= 0x4e00 && c <= 0x9fff) || c == '々';
+    }
+
+    // Greedy longest match; null when some letter is not part of a romaji syllable (English
+    // words), so a word is folded whole or not at all
+    private static String toKana(String word) {
+        StringBuilder out = new StringBuilder(word.length());
+        int i = 0;
+        while (i < word.length()) {
+            char c = word.charAt(i);
+            char next = i + 1 < word.length() ? word.charAt(i + 1) : 0;
+            if (c == 'n' && (next == '\'' || next == 'n')) {
+                out.append('ん');
+                // "konnichiwa": the second n starts the next syllable
+                char after = i + 2 < word.length() ? word.charAt(i + 2) : 0;
+                i += next == 'n' && (isVowel(after) || after == 'y') ? 1 : 2;
+                continue;
+            }
+            if (c == 'n' && !isVowel(next) && next != 'y') {
+                out.append('ん');
+                i++;
+                continue;
+            }
+            if (c != 'n' && c == next && !isVowel(c)) {
+                out.append('っ');
+                i++;
+                continue;
+            }
+            if (c == '\'') {
+                i++;
+                continue;
+            }
+            String kana = null;
+            int length = Math.min(MAX_SYLLABLE, word.length() - i);
+            for (; length > 0; length--) {
+                kana = ROMAJI.get(word.substring(i, i + length));
+                if (kana != null) break;
+            }
+            if (kana == null) return null;
+            out.append(kana);
+            i += length;
+        }
+        return out.length() > 0 ? out.toString() : null;
+    }
+
+    private static boolean isVowel(char c) {
+        return c == 'a' || c == 'i' || c == 'u' || c == 'e' || c == 'o';
+    }
+
+    private static String collapseWhitespace(CharSequence text) {
+        StringBuilder out = new StringBuilder(text.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = out.length() > 0;
+                continue;
+            }
+            // Spaces only separate words in scripts that use them
+            if (pendingSpace && c < 0x3000 && out.charAt(out.length() - 1) < 0x3000) {
+                out.append(' ');
+            }
+            pendingSpace = false;
+            out.append(c);
+        }
+        int end = out.length();
+        while (end > 0 && "。、.,!?！？…~〜".indexOf(out.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        out.setLength(end);
+        return out.toString();
+    }
+}
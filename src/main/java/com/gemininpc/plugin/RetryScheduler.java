@@ -0,0 +1,139 @@
+package com.gemininpc.plugin;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+// Non-blocking retry engine. Attempts run on the given worker executor; the wait between
+// attempts is a timer on a single scheduler thread, so a request that is backing off does
+// not hold a worker thread. Delays grow exponentially with jitter, never undercut a
+// server-sent Retry-After, and no attempt is started past the per-request deadline.
+final class RetryScheduler {
+
+    interface Attempt<T> {
+        // attempt is 0-based; remainingMs is the time left before the request deadline.
+        // Return null or throw RetryableException to try again; any other exception gives up.
+        T run(int attempt, long remainingMs) throws Exception;
+    }
+
+    static class RetryableException extends Exception {
+        private final long retryAfterMs;
+
+        RetryableException(String message, long retryAfterMs) {
+            super(message);
+            this.retryAfterMs = retryAfterMs;
+        }
+
+        long getRetryAfterMs() {
+            return retryAfterMs;
+        }
+    }
+
+    private final Logger logger;
+    private final ScheduledExecutorService timer;
+
+    private volatile int maxAttempts;
+    private volatile long baseDelayMs;
+    private volatile long maxDelayMs;
+    private volatile long deadlineMs;
+
+    RetryScheduler(Logger logger) {
+        this.logger = logger;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "if-Gemini-retry");
+            t.setDaemon(true);
+            return t;
+        });
+        configure(3, 1000, 8000, 180000);
+    }
+
+    void configure(int maxAttempts, long baseDelayMs, long maxDelayMs, long deadlineMs) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMs = Math.max(0, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+        this.deadlineMs = Math.max(1000, deadlineMs);
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    // Completes with the first non-null result, or null once attempts or the deadline run out
+    <T> CompletableFuture<T> submit(String label, Executor worker, Attempt<T> attempt) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        long deadline = System.currentTimeMillis() + deadlineMs;
+        worker.execute(() -> runAttempt(label, worker, attempt, 0, deadline, future));
+        return future;
+    }
+
+    private <T> void runAttempt(String label, Executor worker, Attempt<T> attempt, int n,
+                                long deadline, CompletableFuture<T> future) {
+        if (future.isDone()) return;
+        long retryAfterMs = -1;
+        try {
+            T result = attempt.run(n, deadline - System.currentTimeMillis());
+            if (result != null) {
+                future.complete(result);
+                return;
+            }
+        } catch (RetryableException e) {
+            logger.warning("[if-Gemini] " + label + ": " + e.getMessage() + " (attempt " + (n + 1) + ")");
+            retryAfterMs = e.getRetryAfterMs();
+        } catch (Exception e) {
+            logger.severe("[if-Gemini] " + label + " error: " + e.getMessage());
+            future.complete(null);
+            return;
+        }
+
+        int next = n + 1;
+        if (next >= maxAttempts) {
+            future.complete(null);
+            return;
+        }
+        long delay = Math.max(backoff(next), retryAfterMs);
+        if (System.currentTimeMillis() + delay >= deadline) {
+            logger.warning("[if-Gemini] " + label + ": deadline reached, giving up after " + next + " attempt(s)");
+            future.complete(null);
+            return;
+        }
+        logger.info("[if-Gemini] " + label + ": retry attempt " + next + " in " + delay + "ms");
+        try {
+            timer.schedule(() -> worker.execute(() -> runAttempt(label, worker, attempt, next, deadline, future)),
+                delay, TimeUnit.MILLISECONDS);
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            // Plugin is shutting down
+            future.complete(null);
+        }
+    }
+
+    // Exponential backoff with "equal jitter": half the step is fixed, half is random
+    private long backoff(int retry) {
+        long step = Math.min(maxDelayMs, baseDelayMs << Math.min(20, retry - 1));
+        long half = step / 2;
+        return half + (half > 0 ? ThreadLocalRandom.current().nextLong(half + 1) : 0);
+    }
+
+    // Retry-After is either delta-seconds or an HTTP date; -1 when absent or unparsable
+    static long parseRetryAfter(String header) {
+        if (header == null || header.isEmpty()) return -1;
+        try {
+            return Math.max(0, Long.parseLong(header.trim())) * 1000L;
+        } catch (NumberFormatException ignored) {
+        }
+        try {
+            java.time.ZonedDateTime at = java.time.ZonedDateTime.parse(header.trim(),
+                java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, at.toInstant().toEpochMilli() - System.currentTimeMillis());
+        } catch (java.time.format.DateTimeParseException ignored) {
+            return -1;
+        }
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,67 @@
+package com.gemininpc.plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Accumulates streamed text and releases it in complete sentences (or complete lines in
+// line mode) so partial words never reach the player's chat.
+final class SentenceBuffer {
+
+    // Flush even without a boundary once this much text is pending
+    private static final int MAX_PENDING = 200;
+
+    private final StringBuilder pending = new StringBuilder();
+    private final boolean lineMode;
+
+    SentenceBuffer(boolean lineMode) {
+        this.lineMode = lineMode;
+    }
+
+    List<String> append(String chunk) {
+        List<String> out = new ArrayList<>();
+        if (chunk == null || chunk.isEmpty()) return out;
+        pending.append(chunk);
+
+        int start = 0;
+        for (int i = 0; i < pending.length(); i++) {
+            if (isBoundary(i)) {
+                emit(out, pending.substring(start, i + 1));
+                start = i + 1;
+            }
+        }
+        pending.delete(0, start);
+
+        if (!lineMode && pending.length() > MAX_PENDING) {
+            emit(out, pending.toString());
+            pending.setLength(0);
+        }
+        return out;
+    }
+
+    // Remaining text once the stream has ended
+    String drain() {
+        String rest = pending.toString().trim();
+        pending.setLength(0);
+        return rest;
+    }
+
+    private boolean isBoundary(int i) {
+        char c = pending.charAt(i);
+        if (c == '\n') return true;
+        if (lineMode) return false;
+        if (c == '。' || c == '！' || c == '？') return true;
+        if (c == '!' || c == '?' || c == '.') {
+            // ASCII punctuation only ends a sentence when followed by whitespace,
+            // so "1.21.5" and URLs are not split
+            return i + 1 < pending.length() && Character.isWhitespace(pending.charAt(i + 1));
+        }
+        return false;
+    }
+
+    private void emit(List<String> out, String segment) {
+        String trimmed = segment.trim();
+        if (!trimmed.isEmpty()) {
+            out.add(trimmed);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.gemininpc.plugin;
+
+import java.text.Normalizer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Near-duplicate index over short request texts (command requests, image prompts).
+// Each text is normalized (RequestNormalizer plus dropping polite filler and the particles
+// that follow a kanji/katakana/Latin word), cut into character bigrams and summarized by a
+// 64-value MinHash signature; LSH buckets (16 bands of 4 rows) find candidates that share
+// any band, and the fraction of equal signature values shortlists them. A candidate must
+// then pass on the exact bigram Jaccard similarity, and may not differ in any kanji,
+// Latin letter or digit ("ダイヤの剣" vs "ダイヤの斧"): texts differing only in kana
+// (filler, inflection) still match. Entries are partitioned by a scope (model, or model +
+// ratio + resolution for images) and only match within it, and texts whose numbers differ
+// ("3本" vs "5本") never match, however similar the rest is.
+// Lookups never lock: buckets are ConcurrentHashMaps of immutable id arrays that the single
+// writer replaces. The index holds at most maxEntries, dropping the oldest first.
+final class SimilarityIndex<V> {
+
+    static final class Match<V> {
+        final String scope;
+        final String text;
+        final V value;
+        final double similarity;
+
+        Match(String scope, String text, V value, double similarity) {
+            this.scope = scope;
+            this.text = text;
+            this.value = value;
+            this.similarity = similarity;
+        }
+    }
+
+    private static final class Entry<V> {
+        final long id;
+        final String scope;
+        final String text;
+        final String simText;
+        final String exactKey;
+        final String numbers;
+        final int[] signature;
+        final long[] bandKeys;
+        final V value;
+
+        Entry(long id, String scope, String text, String simText, String exactKey, String numbers, int[] signature,
+              long[] bandKeys, V value) {
+            this.id = id;
+            this.scope = scope;
+            this.text = text;
+            this.simText = simText;
+            this.exactKey = exactKey;
+            this.numbers = numbers;
+            this.signature = signature;
+            this.bandKeys = bandKeys;
+            this.value = value;
+        }
+    }
+
+    private static final int HASHES = 64;
+    private static final int BANDS = 16;
+    private static final int ROWS = HASHES / BANDS;
+    private static final double ESTIMATE_SLACK = 0.15;
+    private static final long[] SEEDS = new long[HASHES];
+
+    // Words that change how a request is phrased, not what is requested (longest first)
+    private static final String[] FILLER = {
+        "をください", "をちょうだい", "ちょうだい", "ください", "おねがいします", "おねがい", "お願いします", "お願い",
+        "をつくって", "つくって", "を作って", "作って", "をだして", "だして", "を出して", "出して",
+        "がほしい", "ほしい", "が欲しい", "欲しい", "してほしい", "して", "がいい", "にして", "みたいな", "っぽい",
+    };
+    private static final String PARTICLES = "のをがはにでともへ";
+
+    static {
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < HASHES; i++) {
+            seed = mix(seed + 0x9E3779B97F4A7C15L);
+            SEEDS[i] = seed;
+        }
+    }
+
+    private final Map<Long, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final Map<Long, long[]> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Long> exact = new ConcurrentHashMap<>();
+    private final ArrayDeque<Long> order = new ArrayDeque<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong lookups = new AtomicLong();
+    private volatile int maxEntries = 2000;
+
+    synchronized void setMaxEntries(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+        trim();
+    }
+
+    // Text as compared: normalized, with filler and particles removed
+    static String similarityText(String text) {
+        String normalized = RequestNormalizer.normalize(stripParticles(text));
+        for (String filler : FILLER) {
+            normalized = normalized.replace(filler, "");
+        }
+        StringBuilder out = new StringBuilder(normalized.length());
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (Character.isWhitespace(c)) continue;
+            out.append(c);
+        }
+        // A text that was nothing but filler still needs something to compare
+        return out.length() > 0 ? out.toString() : normalized;
+    }
+
+    // Drops a particle only where it ends a word: right after a kanji, katakana or Latin
+    // character. Done before katakana is folded to hiragana, so "ダイヤの剣" loses its の
+    // while "ヘルメット", "にわとり" and "ダイヤモンド" keep every character.
+    private static String stripParticles(String text) {
+        if (text == null) return null;
+        String nfkc = Normalizer.normalize(text, Normalizer.Form.NFKC);
+        StringBuilder out = new StringBuilder(nfkc.length());
+        for (int i = 0; i < nfkc.length(); i++) {
+            char c = nfkc.charAt(i);
+            if (PARTICLES.indexOf(c) >= 0 && i > 0) {
+                char previous = nfkc.charAt(i - 1);
+                if (Character.isLetterOrDigit(previous) && !isHiragana(previous)) continue;
+            }
+            out.append(c);
+        }
+        return out.toString();
+    }
+
+    private static boolean isHiragana(char c) {
+        return c >= '\u3041' && c <= '\u309F';
+    }
+
+    // Exact bigram Jaccard similarity of two similarity texts, or 0 when a kanji, Latin
+    // letter or digit appears in only one of them
+    static double verify(String a, String b) {
+        for (int i = 0; i < a.length(); i++) {
+            if (isContent(a.charAt(i)) && b.indexOf(a.charAt(i)) < 0) return 0;
+        }
+        for (int i = 0; i < b.length(); i++) {
+            if (isContent(b.charAt(i)) && a.indexOf(b.charAt(i)) < 0) return 0;
+        }
+        Set<Long> shinglesA = shingles(a);
+        Set<Long> shinglesB = shingles(b);
+        int shared = 0;
+        for (long shingle : shinglesA) {
+            if (shinglesB.contains(shingle)) shared++;
+        }
+        int union = shinglesA.size() + shinglesB.size() - shared;
+        return union == 0 ? 1.0 : (double) shared / union;
+    }
+
+    // Similarity texts hold hiragana for all kana, so katakana words count as kana here
+    private static boolean isContent(char c) {
+        return Character.isLetterOrDigit(c) && !isHiragana(c) && c != 'ー';
+    }
+
+    private static Set<Long> shingles(String text) {
+        Set<Long> shingles = new HashSet<>();
+        int count = Math.max(1, text.length() - 1);
+        for (int i = 0; i < count; i++) {
+            shingles.add(shingle(text, i));
+        }
+        return shingles;
+    }
+
+    private static long shingle(String text, int i) {
+        return text.length() == 1 ? text.charAt(0) : ((long) text.charAt(i) << 16) | text.charAt(i + 1);
+    }
+
+    // Replaces an entry with the same scope and similarity text
+    synchronized void add(String scope, String text, V value) {
+        String simText = similarityText(text);
+        if (simText.isEmpty()) return;
+        String exactKey = scope + "\n" + simText;
+        Long previous = exact.get(exactKey);
+        if (previous != null) {
+            remove(previous);
+        }
+        int[] signature = signature(simText);
+        long[] bandKeys = bandKeys(scope, signature);
+        Entry<V> entry = new Entry<>(nextId.incrementAndGet(), scope, text, simText, exactKey, numbers(simText), signature,
+            bandKeys, value);
+        entries.put(entry.id, entry);
+        exact.put(exactKey, entry.id);
+        for (long bandKey : bandKeys) {
+            long[] ids = buckets.get(bandKey);
+            long[] grown = ids == null ? new long[1] : Arrays.copyOf(ids, ids.length + 1);
+            grown[grown.length - 1] = entry.id;
+            buckets.put(bandKey, grown);
+        }
+        order.addLast(entry.id);
+        trim();
+    }
+
+    // Best match at or above threshold in the same scope, or null. Lock-free.
+    Match<V> findSimilar(String scope, String text, double threshold) {
+        lookups.incrementAndGet();
+        String simText = similarityText(text);
+        if (simText.isEmpty()) return null;
+        int[] signature = signature(simText);
+        String numbers = numbers(simText);
+        Set<Long> seen = new HashSet<>();
+        Entry<V> best = null;
+        double bestSimilarity = 0;
+        for (long bandKey : bandKeys(scope, signature)) {
+            long[] ids = buckets.get(bandKey);
+            if (ids == null) continue;
+            for (long id : ids) {
+                if (!seen.add(id)) continue;
+                Entry<V> candidate = entries.get(id);
+                if (candidate == null || !candidate.scope.equals(scope) || !candidate.numbers.equals(numbers)) continue;
+                // The estimate is off by up to ~0.1 with 64 hashes: it only shortlists, the
+                // exact similarity decides
+                if (estimate(signature, candidate.signature) < threshold - ESTIMATE_SLACK) continue;
+                double similarity = verify(simText, candidate.simText);
+                // Ties go to the newer entry
+                if (similarity > bestSimilarity || (best != null && similarity == bestSimilarity && candidate.id > best.id)) {
+                    best = candidate;
+                    bestSimilarity = similarity;
+                }
+            }
+        }
+        if (best == null || bestSimilarity < threshold) return null;
+        hits.incrementAndGet();
+        return new Match<>(best.scope, best.text, best.value, bestSimilarity);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        buckets.clear();
+        exact.clear();
+        order.clear();
+    }
+
+    // Oldest first, for persisting
+    synchronized List<Match<V>> snapshot() {
+        List<Match<V>> list = new ArrayList<>();
+        for (Long id : order) {
+            Entry<V> e = entries.get(id);
+            if (e != null) list.add(new Match<>(e.scope, e.text, e.value, 1.0));
+        }
+        return list;
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getLookups() {
+        return lookups.get();
+    }
+
+    private void trim() {
+        while (entries.size() > maxEntries && !order.isEmpty()) {
+            remove(order.peekFirst());
+        }
+    }
+
+    private void remove(long id) {
+        Entry<V> entry = entries.remove(id);
+        order.remove(id);
+        if (entry == null) return;
+        exact.remove(entry.exactKey, id);
+        for (long bandKey : entry.bandKeys) {
+            long[] ids = buckets.get(bandKey);
+            if (ids == null) continue;
+            long[] shrunk = new long[ids.length];
+            int n = 0;
+            for (long other : ids) {
+                if (other != id) shrunk[n++] = other;
+            }
+            if (n == 0) {
+                buckets.remove(bandKey);
+            } else {
+                buckets.put(bandKey, Arrays.copyOf(shrunk, n));
+            }
+        }
+    }
+
+    // Every digit run, in order
+    private static String numbers(String text) {
+        StringBuilder out = new StringBuilder();
+        boolean inNumber = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                out.append(c);
+                inNumber = true;
+            } else if (inNumber) {
+                out.append(',');
+                inNumber = false;
+            }
+        }
+        return out.toString();
+    }
+
+    private static int[] signature(String text) {
+        int[] signature = new int[HASHES];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        int shingles = Math.max(1, text.length() - 1);
+        for (int i = 0; i < shingles; i++) {
+            long shingle = shingle(text, i);
+            for (int h = 0; h < HASHES; h++) {
+                int value = (int) (mix(shingle ^ SEEDS[h]) >>> 33);
+                if (value < signature[h]) signature[h] = value;
+            }
+        }
+        return signature;
+    }
+
+    private static long[] bandKeys(String scope, int[] signature) {
+        long scopeHash = mix(scope.hashCode());
+        long[] keys = new long[BANDS];
+        for (int b = 0; b < BANDS; b++) {
+            long key = scopeHash + b;
+            for (int r = 0; r < ROWS; r++) {
+                key = mix(key * 31 + signature[b * ROWS + r]);
+            }
+            keys[b] = key;
+        }
+        return keys;
+    }
+
+    private static double estimate(int[] a, int[] b) {
+        int equal = 0;
+        for (int i = 0; i < HASHES; i++) {
+            if (a[i] == b[i]) equal++;
+        }
+        return (double) equal / HASHES;
+    }
+
+    // SplitMix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,168 @@
+package com.gemininpc.plugin;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+// TTL + LRU cache in front of an asynchronous loader, for results that many players ask for
+// at once (web search). Concurrent misses for the same key share one load (single flight):
+// the first caller starts it and everyone else gets the same future. An entry is fresh for
+// freshMs; after that, one that has been hit at least popularHits times is still served for
+// up to staleMs more while a background load replaces it (stale-while-revalidate). A null
+// result, or one the caller's storable test rejects, is handed to the waiting callers but
+// not stored.
+final class SingleFlightCache<V> {
+
+    interface Loader<V> {
+        // background is true for a stale-while-revalidate refresh nobody is waiting on
+        CompletableFuture<V> load(boolean background);
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long storedAt;
+        int hits;
+
+        Entry(V value, long storedAt, int hits) {
+            this.value = value;
+            this.storedAt = storedAt;
+            this.hits = hits;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry<V>> entries = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+            return size() > maxEntries;
+        }
+    };
+    private final Map<String, CompletableFuture<V>> inFlight = new HashMap<>();
+    private boolean enabled = true;
+    private int maxEntries = 200;
+    private long freshMs = 600000;
+    private long staleMs = 3600000;
+    private int popularHits = 3;
+    private long hits;
+    private long staleHits;
+    private long coalesced;
+    private long misses;
+    private long refreshes;
+
+    synchronized void configure(boolean enabled, int maxEntries, long freshMs, long staleMs, int popularHits) {
+        this.enabled = enabled;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.freshMs = Math.max(1000, freshMs);
+        this.staleMs = Math.max(0, staleMs);
+        this.popularHits = Math.max(1, popularHits);
+        entries.clear();
+    }
+
+    CompletableFuture<V> get(String key, Loader<V> loader) {
+        return get(key, loader, value -> true);
+    }
+
+    CompletableFuture<V> get(String key, Loader<V> loader, Predicate<V> storable) {
+        CompletableFuture<V> slot = null;
+        CompletableFuture<V> stale = null;
+        synchronized (this) {
+            if (enabled) {
+                long now = System.currentTimeMillis();
+                Entry<V> entry = entries.get(key);
+                if (entry != null) {
+                    long age = now - entry.storedAt;
+                    if (age <= freshMs) {
+                        entry.hits++;
+                        hits++;
+                        return CompletableFuture.completedFuture(entry.value);
+                    }
+                    if (age <= freshMs + staleMs && entry.hits >= popularHits) {
+                        entry.hits++;
+                        staleHits++;
+                        stale = CompletableFuture.completedFuture(entry.value);
+                        if (inFlight.containsKey(key)) return stale;
+                        refreshes++;
+                    }
+                }
+                if (stale == null) {
+                    CompletableFuture<V> pending = inFlight.get(key);
+                    if (pending != null) {
+                        coalesced++;
+                        return pending;
+                    }
+                    misses++;
+                }
+                slot = new CompletableFuture<>();
+                inFlight.put(key, slot);
+            }
+        }
+        if (slot == null) {
+            return loader.load(false);
+        }
+        start(key, slot, loader, storable, stale != null);
+        return stale != null ? stale : slot;
+    }
+
+    private void start(String key, CompletableFuture<V> slot, Loader<V> loader, Predicate<V> storable, boolean background) {
+        CompletableFuture<V> load;
+        try {
+            load = loader.load(background);
+        } catch (RuntimeException e) {
+            load = CompletableFuture.failedFuture(e);
+        }
+        load.whenComplete((value, error) -> {
+            synchronized (this) {
+                inFlight.remove(key, slot);
+                if (error == null && value != null && enabled && storable.test(value)) {
+                    Entry<V> previous = entries.get(key);
+                    entries.put(key, new Entry<>(value, System.currentTimeMillis(), previous != null ? previous.hits : 0));
+                }
+            }
+            if (error != null) {
+                slot.completeExceptionally(error);
+            } else {
+                slot.complete(value);
+            }
+        });
+    }
+
+    // Returns how many entries were dropped; loads in flight still complete their waiters
+    synchronized int invalidateAll() {
+        int size = entries.size();
+        entries.clear();
+        return size;
+    }
+
+    synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized int getMaxEntries() {
+        return maxEntries;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getStaleHits() {
+        return staleHits;
+    }
+
+    synchronized long getCoalesced() {
+        return coalesced;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getRefreshes() {
+        return refreshes;
+    }
+}